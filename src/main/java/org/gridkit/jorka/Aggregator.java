@@ -0,0 +1,773 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.code.regexp.Matcher;
+import com.google.code.regexp.Pattern;
+
+/**
+ * <p>
+ * Streaming aggregation over fields captured by compiled {@link Jorka}.
+ * Lines are summarized directly from regex groups, no {@link Jorka.Match}
+ * or capture map is created per line.
+ * </p>
+ * <p>
+ * Aggregator itself only holds configuration. Each worker thread should
+ * use its own {@link Partial}, partials are combined with {@link #merge(Collection)}
+ * once input is exhausted.
+ * </p>
+ * <pre>
+ * Aggregator agg = new Aggregator(jorka);
+ * agg.groupBy("response");
+ * agg.sum("bytes");
+ * agg.quantile("bytes", 0.5, 0.99);
+ * Aggregator.Partial p = agg.newPartial();
+ * while(...) { p.accept(line); }
+ * Aggregator.Result r = agg.merge(Arrays.asList(p));
+ * </pre>
+ */
+public class Aggregator {
+
+	public static final String COUNT = "count";
+
+	private final Jorka jorka;
+	private final Pattern regexp;
+	private final List<String> fields = new ArrayList<String>();
+	private final List<String[]> fieldGroups = new ArrayList<String[]>();
+	private final List<Integer> groupBy = new ArrayList<Integer>();
+	private final List<Metric> metrics = new ArrayList<Metric>();
+
+	private int hllPrecision = 12;
+	private double quantileError = 0.01;
+	private boolean frozen;
+
+	/**
+	 * @param jorka compiled pattern, should not be modified while aggregator is in use
+	 */
+	public Aggregator(Jorka jorka) {
+		if (jorka.getRegEx() == null) {
+			throw new IllegalArgumentException("Pattern is not compiled");
+		}
+		this.jorka = jorka;
+		this.regexp = jorka.getRegEx();
+	}
+
+	public void groupBy(String... names) {
+		for(String name: names) {
+			groupBy.add(field(name));
+		}
+	}
+
+	public void sum(String name) {
+		addMetric(new SumMetric(field(name), "sum(" + name + ")"));
+	}
+
+	public void min(String name) {
+		addMetric(new ExtremumMetric(field(name), "min(" + name + ")", false));
+	}
+
+	public void max(String name) {
+		addMetric(new ExtremumMetric(field(name), "max(" + name + ")", true));
+	}
+
+	/**
+	 * Approximate number of distinct values of field (HyperLogLog).
+	 */
+	public void distinct(String name) {
+		addMetric(new DistinctMetric(field(name), "distinct(" + name + ")"));
+	}
+
+	/**
+	 * Approximate quantiles of numeric field, reported as <tt>p50(name)</tt>, <tt>p99.9(name)</tt> etc.
+	 */
+	public void quantile(String name, double... quantiles) {
+		String[] names = new String[quantiles.length];
+		for(int i = 0; i != quantiles.length; ++i) {
+			if (quantiles[i] < 0 || quantiles[i] > 1) {
+				throw new IllegalArgumentException("Quantile should be in range [0, 1]: " + quantiles[i]);
+			}
+			names[i] = "p" + formatPercent(quantiles[i]) + "(" + name + ")";
+		}
+		addMetric(new QuantileMetric(field(name), names, quantiles.clone()));
+	}
+
+	/**
+	 * @param precision number of index bits for distinct counters (4..18), default is 12
+	 */
+	public void setDistinctPrecision(int precision) {
+		checkNotFrozen();
+		new HyperLogLog(precision);
+		this.hllPrecision = precision;
+	}
+
+	/**
+	 * @param relativeError relative error of reported quantiles, default is 0.01
+	 */
+	public void setQuantileError(double relativeError) {
+		checkNotFrozen();
+		new QuantileHistogram(relativeError);
+		this.quantileError = relativeError;
+	}
+
+	/**
+	 * Configuration cannot be changed once first partial is created.
+	 *
+	 * @return new partial aggregate, to be used by single thread
+	 */
+	public Partial newPartial() {
+		frozen = true;
+		return new Partial();
+	}
+
+	public Result merge(Collection<Partial> partials) {
+		Partial total = newPartial();
+		for(Partial p: partials) {
+			if (p.owner() != this) {
+				throw new IllegalArgumentException("Partial belongs to another aggregator");
+			}
+			total.merge(p);
+		}
+		return total.toResult();
+	}
+
+	/**
+	 * Consumes all lines from pipeline using a number of worker threads,
+	 * each with its own {@link Partial}.
+	 * <p>
+	 * If any worker fails, pipeline is closed and failure is rethrown
+	 * (wrapped into {@link IOException} if necessary), partial results are discarded.
+	 */
+	public Result aggregate(final LinePipeline lines, int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads should be positive");
+		}
+		final List<Partial> partials = new ArrayList<Partial>();
+		final Throwable[] error = new Throwable[1];
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i != threads; ++i) {
+			final Partial p = newPartial();
+			partials.add(p);
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						List<String> batch;
+						while((batch = lines.nextBatch()) != null) {
+							for(String line: batch) {
+								p.accept(line);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (error) {
+							if (error[0] == null) {
+								error[0] = e;
+							}
+						}
+						lines.close();
+					}
+				}
+			}, "Aggregator-worker-" + i);
+			workers[i].start();
+		}
+		try {
+			for(Thread t: workers) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			lines.close();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		synchronized (error) {
+			if (error[0] instanceof IOException) {
+				throw (IOException)error[0];
+			}
+			else if (error[0] != null) {
+				throw new IOException("Aggregation has failed: " + error[0], error[0]);
+			}
+		}
+		return merge(partials);
+	}
+
+	private int field(String name) {
+		checkNotFrozen();
+		int n = fields.indexOf(name);
+		if (n < 0) {
+			List<String> groups = jorka.getCaptureGroups(name);
+			if (groups.isEmpty()) {
+				throw new IllegalArgumentException("Field '" + name + "' is not captured by pattern");
+			}
+			fields.add(name);
+			fieldGroups.add(groups.toArray(new String[groups.size()]));
+			n = fields.size() - 1;
+		}
+		return n;
+	}
+
+	private void addMetric(Metric metric) {
+		checkNotFrozen();
+		metrics.add(metric);
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("Aggregator is already in use");
+		}
+	}
+
+	private static String formatPercent(double q) {
+		String s = String.valueOf(q * 100);
+		if (s.indexOf('E') < 0 && s.indexOf('.') >= 0) {
+			s = s.replaceAll("0+$", "");
+			if (s.endsWith(".")) {
+				s = s.substring(0, s.length() - 1);
+			}
+		}
+		return s;
+	}
+
+	private static double parseNumber(String value) {
+		if (value == null || value.length() == 0) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(value);
+		}
+		catch(NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static Object toNumber(double value) {
+		if (Double.isNaN(value)) {
+			return null;
+		}
+		else if (value == Math.rint(value) && Math.abs(value) < (1l << 53)) {
+			return Long.valueOf((long)value);
+		}
+		else {
+			return Double.valueOf(value);
+		}
+	}
+
+	/**
+	 * Per thread aggregation state. Groups are kept in open addressing
+	 * table keyed by 64 bit hash of group key, metrics are stored
+	 * column wise in primitive arrays.
+	 * <p>
+	 * Not thread safe.
+	 */
+	public class Partial {
+
+		private final String[] values = new String[fields.size()];
+		private final Column[] columns = new Column[metrics.size()];
+		private final int[] keyFields = new int[groupBy.size()];
+
+		private long matched;
+		private long unmatched;
+
+		private int groupCount;
+		private String[][] keys = new String[16][];
+		private long[] counts = new long[16];
+
+		private int[] table = new int[32];
+		private long[] tableHashes = new long[32];
+
+		Partial() {
+			for(int i = 0; i != columns.length; ++i) {
+				columns[i] = metrics.get(i).newColumn();
+				columns[i].grow(keys.length);
+			}
+			for(int i = 0; i != keyFields.length; ++i) {
+				keyFields[i] = groupBy.get(i);
+			}
+		}
+
+		Aggregator owner() {
+			return Aggregator.this;
+		}
+
+		/**
+		 * Matches line against pattern and updates aggregates.
+		 *
+		 * @return <code>true</code> if line has matched pattern
+		 */
+		public boolean accept(String line) {
+			Matcher m = regexp.matcher(line);
+			if (!m.matches()) {
+				++unmatched;
+				return false;
+			}
+			++matched;
+			for(int i = 0; i != values.length; ++i) {
+				values[i] = null;
+				for(String g: fieldGroups.get(i)) {
+					String v = m.group(g);
+					if (v != null) {
+						values[i] = v;
+						break;
+					}
+				}
+			}
+			int group = lookup(values, null, true);
+			counts[group]++;
+			for(int i = 0; i != columns.length; ++i) {
+				columns[i].update(group, values[metrics.get(i).field]);
+			}
+			return true;
+		}
+
+		public long getMatchedCount() {
+			return matched;
+		}
+
+		public long getUnmatchedCount() {
+			return unmatched;
+		}
+
+		/**
+		 * Merges aggregates of other partial into this one.
+		 */
+		public void merge(Partial that) {
+			if (that.owner() != owner()) {
+				throw new IllegalArgumentException("Partial belongs to another aggregator");
+			}
+			matched += that.matched;
+			unmatched += that.unmatched;
+			for(int g = 0; g != that.groupCount; ++g) {
+				int group = lookup(null, that.keys[g], false);
+				counts[group] += that.counts[g];
+				for(int i = 0; i != columns.length; ++i) {
+					columns[i].merge(group, that.columns[i], g);
+				}
+			}
+		}
+
+		public Result toResult() {
+			List<Map<String, Object>> rows = new ArrayList<Map<String,Object>>(groupCount);
+			for(int g = 0; g != groupCount; ++g) {
+				Map<String, Object> row = new LinkedHashMap<String, Object>();
+				for(int i = 0; i != keyFields.length; ++i) {
+					row.put(fields.get(keyFields[i]), keys[g][i]);
+				}
+				row.put(COUNT, counts[g]);
+				for(int i = 0; i != columns.length; ++i) {
+					columns[i].export(g, row);
+				}
+				rows.add(row);
+			}
+			return new Result(rows, matched, unmatched);
+		}
+
+		/**
+		 * Either line values or ready key should be provided.
+		 */
+		private int lookup(String[] lineValues, String[] key, boolean copyKey) {
+			long hash = 0x9e3779b97f4a7c15l;
+			for(int i = 0; i != keyFields.length; ++i) {
+				String v = key != null ? key[i] : lineValues[keyFields[i]];
+				hash = HyperLogLog.mix64(hash ^ (v == null ? 0x5bd1e995l : HyperLogLog.hash64(v)));
+			}
+			int mask = table.length - 1;
+			int slot = (int)hash & mask;
+			while(true) {
+				int g = table[slot] - 1;
+				if (g < 0) {
+					break;
+				}
+				if (tableHashes[slot] == hash && keyEquals(keys[g], lineValues, key)) {
+					return g;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (key == null || copyKey) {
+				key = new String[keyFields.length];
+				for(int i = 0; i != keyFields.length; ++i) {
+					key[i] = lineValues[keyFields[i]];
+				}
+			}
+			int g = addGroup(key);
+			table[slot] = g + 1;
+			tableHashes[slot] = hash;
+			if (2 * groupCount > table.length) {
+				rehash();
+			}
+			return g;
+		}
+
+		private boolean keyEquals(String[] groupKey, String[] lineValues, String[] key) {
+			for(int i = 0; i != groupKey.length; ++i) {
+				String v = key != null ? key[i] : lineValues[keyFields[i]];
+				if (v == null ? groupKey[i] != null : !v.equals(groupKey[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int addGroup(String[] key) {
+			if (groupCount == keys.length) {
+				int capacity = 2 * keys.length;
+				keys = Arrays.copyOf(keys, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				for(Column c: columns) {
+					c.grow(capacity);
+				}
+			}
+			keys[groupCount] = key;
+			return groupCount++;
+		}
+
+		private void rehash() {
+			int[] oldTable = table;
+			long[] oldHashes = tableHashes;
+			table = new int[2 * oldTable.length];
+			tableHashes = new long[2 * oldTable.length];
+			int mask = table.length - 1;
+			for(int i = 0; i != oldTable.length; ++i) {
+				if (oldTable[i] != 0) {
+					int slot = (int)oldHashes[i] & mask;
+					while(table[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					table[slot] = oldTable[i];
+					tableHashes[slot] = oldHashes[i];
+				}
+			}
+		}
+	}
+
+	public static class Result {
+
+		private final List<Map<String, Object>> rows;
+		private final long matched;
+		private final long unmatched;
+
+		Result(List<Map<String, Object>> rows, long matched, long unmatched) {
+			this.rows = rows;
+			this.matched = matched;
+			this.unmatched = unmatched;
+		}
+
+		/**
+		 * Each row contains group by fields followed by <tt>count</tt> and
+		 * configured metrics. Rows are in order of first occurrence of group.
+		 */
+		public List<Map<String, Object>> getRows() {
+			return rows;
+		}
+
+		public long getMatchedCount() {
+			return matched;
+		}
+
+		public long getUnmatchedCount() {
+			return unmatched;
+		}
+
+		public String toJSON() {
+			Map<String, Object> doc = new LinkedHashMap<String, Object>();
+			doc.put("matched", matched);
+			doc.put("unmatched", unmatched);
+			doc.put("groups", rows);
+			StringWriter writer = new StringWriter();
+			try {
+				new JsonWriter(writer).writeMap(doc);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return writer.toString();
+		}
+
+		@Override
+		public String toString() {
+			return toJSON();
+		}
+	}
+
+
+	private abstract static class Metric {
+
+		final int field;
+
+		Metric(int field) {
+			this.field = field;
+		}
+
+		abstract Column newColumn();
+	}
+
+	private abstract static class Column {
+
+		abstract void grow(int capacity);
+
+		abstract void update(int group, String value);
+
+		abstract void merge(int group, Column that, int thatGroup);
+
+		abstract void export(int group, Map<String, Object> row);
+	}
+
+	private static class SumMetric extends Metric {
+
+		final String name;
+
+		SumMetric(int field, String name) {
+			super(field);
+			this.name = name;
+		}
+
+		@Override
+		Column newColumn() {
+			return new SumColumn(name);
+		}
+	}
+
+	private static class SumColumn extends Column {
+
+		final String name;
+		double[] sums = new double[0];
+		boolean[] seen = new boolean[0];
+
+		SumColumn(String name) {
+			this.name = name;
+		}
+
+		@Override
+		void grow(int capacity) {
+			sums = Arrays.copyOf(sums, capacity);
+			seen = Arrays.copyOf(seen, capacity);
+		}
+
+		@Override
+		void update(int group, String value) {
+			double v = parseNumber(value);
+			if (!Double.isNaN(v)) {
+				sums[group] += v;
+				seen[group] = true;
+			}
+		}
+
+		@Override
+		void merge(int group, Column that, int thatGroup) {
+			SumColumn c = (SumColumn)that;
+			if (c.seen[thatGroup]) {
+				sums[group] += c.sums[thatGroup];
+				seen[group] = true;
+			}
+		}
+
+		@Override
+		void export(int group, Map<String, Object> row) {
+			row.put(name, seen[group] ? toNumber(sums[group]) : null);
+		}
+	}
+
+	private static class ExtremumMetric extends Metric {
+
+		final String name;
+		final boolean max;
+
+		ExtremumMetric(int field, String name, boolean max) {
+			super(field);
+			this.name = name;
+			this.max = max;
+		}
+
+		@Override
+		Column newColumn() {
+			return new ExtremumColumn(name, max);
+		}
+	}
+
+	private static class ExtremumColumn extends Column {
+
+		final String name;
+		final boolean max;
+		double[] values = new double[0];
+
+		ExtremumColumn(String name, boolean max) {
+			this.name = name;
+			this.max = max;
+		}
+
+		@Override
+		void grow(int capacity) {
+			int n = values.length;
+			values = Arrays.copyOf(values, capacity);
+			Arrays.fill(values, n, capacity, Double.NaN);
+		}
+
+		@Override
+		void update(int group, String value) {
+			add(group, parseNumber(value));
+		}
+
+		private void add(int group, double v) {
+			if (!Double.isNaN(v)) {
+				double c = values[group];
+				if (Double.isNaN(c) || (max ? v > c : v < c)) {
+					values[group] = v;
+				}
+			}
+		}
+
+		@Override
+		void merge(int group, Column that, int thatGroup) {
+			add(group, ((ExtremumColumn)that).values[thatGroup]);
+		}
+
+		@Override
+		void export(int group, Map<String, Object> row) {
+			row.put(name, toNumber(values[group]));
+		}
+	}
+
+	private class DistinctMetric extends Metric {
+
+		final String name;
+
+		DistinctMetric(int field, String name) {
+			super(field);
+			this.name = name;
+		}
+
+		@Override
+		Column newColumn() {
+			return new DistinctColumn(name, hllPrecision);
+		}
+	}
+
+	private static class DistinctColumn extends Column {
+
+		final String name;
+		final int precision;
+		HyperLogLog[] counters = new HyperLogLog[0];
+
+		DistinctColumn(String name, int precision) {
+			this.name = name;
+			this.precision = precision;
+		}
+
+		@Override
+		void grow(int capacity) {
+			counters = Arrays.copyOf(counters, capacity);
+		}
+
+		private HyperLogLog counter(int group) {
+			if (counters[group] == null) {
+				counters[group] = new HyperLogLog(precision);
+			}
+			return counters[group];
+		}
+
+		@Override
+		void update(int group, String value) {
+			if (value != null) {
+				counter(group).add(value);
+			}
+		}
+
+		@Override
+		void merge(int group, Column that, int thatGroup) {
+			HyperLogLog c = ((DistinctColumn)that).counters[thatGroup];
+			if (c != null) {
+				counter(group).merge(c);
+			}
+		}
+
+		@Override
+		void export(int group, Map<String, Object> row) {
+			row.put(name, counters[group] == null ? 0l : counters[group].estimate());
+		}
+	}
+
+	private class QuantileMetric extends Metric {
+
+		final String[] names;
+		final double[] quantiles;
+
+		QuantileMetric(int field, String[] names, double[] quantiles) {
+			super(field);
+			this.names = names;
+			this.quantiles = quantiles;
+		}
+
+		@Override
+		Column newColumn() {
+			return new QuantileColumn(names, quantiles, quantileError);
+		}
+	}
+
+	private static class QuantileColumn extends Column {
+
+		final String[] names;
+		final double[] quantiles;
+		final double error;
+		QuantileHistogram[] histograms = new QuantileHistogram[0];
+
+		QuantileColumn(String[] names, double[] quantiles, double error) {
+			this.names = names;
+			this.quantiles = quantiles;
+			this.error = error;
+		}
+
+		@Override
+		void grow(int capacity) {
+			histograms = Arrays.copyOf(histograms, capacity);
+		}
+
+		private QuantileHistogram histogram(int group) {
+			if (histograms[group] == null) {
+				histograms[group] = new QuantileHistogram(error);
+			}
+			return histograms[group];
+		}
+
+		@Override
+		void update(int group, String value) {
+			double v = parseNumber(value);
+			if (!Double.isNaN(v)) {
+				histogram(group).add(v);
+			}
+		}
+
+		@Override
+		void merge(int group, Column that, int thatGroup) {
+			QuantileHistogram h = ((QuantileColumn)that).histograms[thatGroup];
+			if (h != null) {
+				histogram(group).merge(h);
+			}
+		}
+
+		@Override
+		void export(int group, Map<String, Object> row) {
+			QuantileHistogram h = histograms[group];
+			for(int i = 0; i != names.length; ++i) {
+				row.put(names[i], h == null ? null : toNumber(h.quantile(quantiles[i])));
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Reads blocked gzip (BGZF, produced by <tt>bgzip</tt>) stream.
+ * </p>
+ * <p>
+ * Each BGZF block is an independent gzip member with its compressed
+ * size stored in header, so blocks are read sequentially but inflated
+ * in parallel by a pool of threads. Decoded blocks are returned in
+ * original order.
+ * </p>
+ */
+public class BgzfInputStream extends InputStream {
+
+	private static final int GZIP_HEADER = 12;
+	private static final int FEXTRA = 4;
+	private static final int MAX_BLOCK_SIZE = 64 << 10;
+	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+	private final DataInputStream in;
+	private final ExecutorService inflaters;
+	private final int prefetch;
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private boolean eof;
+	private byte[] block = new byte[0];
+	private int pos;
+
+	/**
+	 * @param threads number of threads used for inflation
+	 */
+	public BgzfInputStream(InputStream in, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is required");
+		}
+		this.in = new DataInputStream(in);
+		this.prefetch = 4 * threads;
+		this.inflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BgzfInflater-" + THREAD_COUNTER.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Checks whenever header is a header of BGZF block.
+	 * At least 18 bytes are required.
+	 */
+	public static boolean isBgzfHeader(byte[] header, int len) {
+		if (len < 18) {
+			return false;
+		}
+		if ((header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || header[2] != 8 || (header[3] & FEXTRA) == 0) {
+			return false;
+		}
+		int xlen = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+		return xlen >= 6 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureData()) {
+			return -1;
+		}
+		return block[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureData()) {
+			return -1;
+		}
+		int n = Math.min(len, block.length - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return block.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflaters.shutdownNow();
+		pending.clear();
+		eof = true;
+		in.close();
+	}
+
+	private boolean ensureData() throws IOException {
+		while(pos == block.length) {
+			while(!eof && pending.size() < prefetch) {
+				byte[] raw = readBlock();
+				if (raw == null) {
+					eof = true;
+				}
+				else {
+					pending.add(inflaters.submit(new InflateTask(raw)));
+				}
+			}
+			Future<byte[]> f = pending.poll();
+			if (f == null) {
+				inflaters.shutdown();
+				return false;
+			}
+			block = get(f);
+			pos = 0;
+		}
+		return true;
+	}
+
+	private byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Block inflation failed", e.getCause());
+		}
+	}
+
+	/**
+	 * @return whole BGZF block including header and trailer or <code>null</code> at end of stream
+	 */
+	private byte[] readBlock() throws IOException {
+		byte[] header = new byte[GZIP_HEADER];
+		int n = 0;
+		while(n < GZIP_HEADER) {
+			int m = in.read(header, n, GZIP_HEADER - n);
+			if (m < 0) {
+				if (n == 0) {
+					return null;
+				}
+				throw new EOFException("Truncated BGZF block header");
+			}
+			n += m;
+		}
+		if ((header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || header[2] != 8 || (header[3] & FEXTRA) == 0) {
+			throw new IOException("Not a BGZF block");
+		}
+		int xlen = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+		byte[] extra = new byte[xlen];
+		in.readFully(extra);
+		int bsize = -1;
+		int i = 0;
+		while(i + 4 <= xlen) {
+			int slen = (extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8;
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2 && i + 6 <= xlen) {
+				bsize = (extra[i + 4] & 0xFF) | (extra[i + 5] & 0xFF) << 8;
+			}
+			i += 4 + slen;
+		}
+		if (bsize < 0) {
+			throw new IOException("Not a BGZF block, BC subfield is missing");
+		}
+		int total = bsize + 1;
+		if (total < GZIP_HEADER + xlen + 8) {
+			throw new IOException("Corrupted BGZF block, size " + total);
+		}
+		byte[] raw = new byte[total];
+		System.arraycopy(header, 0, raw, 0, GZIP_HEADER);
+		System.arraycopy(extra, 0, raw, GZIP_HEADER, xlen);
+		in.readFully(raw, GZIP_HEADER + xlen, total - GZIP_HEADER - xlen);
+		return raw;
+	}
+
+	private static class InflateTask implements Callable<byte[]> {
+
+		private final byte[] raw;
+
+		InflateTask(byte[] raw) {
+			this.raw = raw;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			int xlen = (raw[10] & 0xFF) | (raw[11] & 0xFF) << 8;
+			int dataStart = GZIP_HEADER + xlen;
+			int dataLen = raw.length - dataStart - 8;
+			int crc = readInt(raw, raw.length - 8);
+			int isize = readInt(raw, raw.length - 4);
+			// size in trailer is verified before allocation
+			if (isize < 0 || isize > MAX_BLOCK_SIZE) {
+				throw new IOException("Corrupted BGZF block, invalid uncompressed size " + isize);
+			}
+			byte[] data = new byte[isize];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(raw, dataStart, dataLen);
+				int n = 0;
+				while(n < isize) {
+					int m = inflater.inflate(data, n, isize - n);
+					if (m == 0 && (inflater.finished() || inflater.needsInput())) {
+						break;
+					}
+					n += m;
+				}
+				if (n == isize && !inflater.finished()) {
+					// end of deflate stream may still be pending, it should not yield any more data
+					n += inflater.inflate(new byte[1]);
+				}
+				if (n != isize || !inflater.finished()) {
+					throw new IOException("Corrupted BGZF block, size mismatch");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted BGZF block: " + e.getMessage());
+			}
+			finally {
+				inflater.end();
+			}
+			CRC32 crc32 = new CRC32();
+			crc32.update(data);
+			if ((int)crc32.getValue() != crc) {
+				throw new IOException("Corrupted BGZF block, CRC mismatch");
+			}
+			return data;
+		}
+
+		private static int readInt(byte[] buf, int off) {
+			return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+		}
+	}
+}
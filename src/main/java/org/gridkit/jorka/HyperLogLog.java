@@ -0,0 +1,152 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.util.Arrays;
+
+/**
+ * Approximate distinct counter.
+ * <p>
+ * Small cardinalities are tracked exactly as a list of hashes,
+ * registers are allocated only once list overflows.
+ */
+class HyperLogLog {
+
+	private static final int SPARSE_LIMIT = 64;
+
+	private final int precision;
+	private long[] sparse;
+	private int sparseSize;
+	private byte[] registers;
+
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("Precision should be in range 4..18");
+		}
+		this.precision = precision;
+		this.sparse = new long[8];
+	}
+
+	public void add(CharSequence value) {
+		addHash(hash64(value));
+	}
+
+	public void addHash(long hash) {
+		if (registers != null) {
+			addToRegisters(hash);
+		}
+		else {
+			for(int i = 0; i != sparseSize; ++i) {
+				if (sparse[i] == hash) {
+					return;
+				}
+			}
+			if (sparseSize == SPARSE_LIMIT) {
+				toDense();
+				addToRegisters(hash);
+			}
+			else {
+				if (sparseSize == sparse.length) {
+					sparse = Arrays.copyOf(sparse, 2 * sparse.length);
+				}
+				sparse[sparseSize++] = hash;
+			}
+		}
+	}
+
+	public void merge(HyperLogLog that) {
+		if (that.precision != precision) {
+			throw new IllegalArgumentException("Precision mismatch " + precision + " != " + that.precision);
+		}
+		if (that.registers == null) {
+			for(int i = 0; i != that.sparseSize; ++i) {
+				addHash(that.sparse[i]);
+			}
+		}
+		else {
+			if (registers == null) {
+				toDense();
+			}
+			for(int i = 0; i != registers.length; ++i) {
+				if (registers[i] < that.registers[i]) {
+					registers[i] = that.registers[i];
+				}
+			}
+		}
+	}
+
+	public long estimate() {
+		if (registers == null) {
+			return sparseSize;
+		}
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for(int i = 0; i != m; ++i) {
+			sum += 1d / (1l << registers[i]);
+			if (registers[i] == 0) {
+				++zeros;
+			}
+		}
+		double alpha = 0.7213 / (1 + 1.079 / m);
+		double e = alpha * m * m / sum;
+		if (e <= 2.5 * m && zeros > 0) {
+			// linear counting for small range
+			e = m * Math.log((double)m / zeros);
+		}
+		return Math.round(e);
+	}
+
+	private void toDense() {
+		registers = new byte[1 << precision];
+		for(int i = 0; i != sparseSize; ++i) {
+			addToRegisters(sparse[i]);
+		}
+		sparse = null;
+		sparseSize = 0;
+	}
+
+	private void addToRegisters(long hash) {
+		int index = (int)(hash >>> (64 - precision));
+		long w = hash << precision;
+		int rank = w == 0 ? 64 - precision + 1 : Long.numberOfLeadingZeros(w) + 1;
+		if (registers[index] < rank) {
+			registers[index] = (byte)rank;
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a hash with final avalanche mixing.
+	 */
+	static long hash64(CharSequence text) {
+		long h = 0xcbf29ce484222325l;
+		int len = text.length();
+		for(int i = 0; i != len; ++i) {
+			h ^= text.charAt(i);
+			h *= 0x100000001b3l;
+		}
+		return mix64(h);
+	}
+
+	static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -274,6 +274,26 @@ public class Jorka extends Object {
 		return capturedMap;
 	}
 
+	/**
+	 * Several regex groups may be captured under same name
+	 * (e.g. alternatives in pattern).
+	 *
+	 * @return names of regex groups captured as <tt>field</tt>, in order of appearance in pattern
+	 */
+	public List<String> getCaptureGroups(String field) {
+		List<String> groups = new ArrayList<String>();
+		if (regexp == null) {
+			return groups;
+		}
+		for(int i = 0; i != capturedMap.size(); ++i) {
+			String group = "name" + i;
+			if (field.equals(capturedMap.get(group)) && expandedPattern.contains("(?<" + group + ">")) {
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+
 	public int isPattern() {
 		if (patterns == null)
 			return 0;
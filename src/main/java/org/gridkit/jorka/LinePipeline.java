@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ * Reads lines on a dedicated decoder thread and hands them
+ * to matching workers in batches through a bounded queue.
+ * </p>
+ * <p>
+ * Decompression and charset decoding are performed by decoder thread,
+ * so they run in parallel with parsing. {@link #nextBatch()} is safe
+ * to call from multiple workers.
+ * </p>
+ */
+public class LinePipeline {
+
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+	public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+	private static final List<String> END_OF_STREAM = Collections.emptyList();
+
+	private final InputStream source;
+	private final BufferedReader reader;
+	private final int batchSize;
+	private final BlockingQueue<List<String>> queue;
+	private final Thread decoder;
+
+	private volatile Throwable error;
+	private volatile boolean closed;
+	private volatile long lineCount;
+
+	/**
+	 * Opens file detecting its compression by content. Plain gzip (including
+	 * concatenated multi member archives) and BGZF are supported.
+	 * BGZF blocks are inflated using all available processors.
+	 */
+	public static LinePipeline open(File file) throws IOException {
+		return new LinePipeline(openStream(file, Runtime.getRuntime().availableProcessors()), Charset.forName("UTF-8"), DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * Opens file as a byte stream, transparently decompressing gzip and BGZF.
+	 *
+	 * @param inflaterThreads number of threads to inflate BGZF blocks
+	 */
+	public static InputStream openStream(File file, int inflaterThreads) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		try {
+			byte[] header = new byte[18];
+			in.mark(header.length);
+			int n = 0;
+			while(n < header.length) {
+				int m = in.read(header, n, header.length - n);
+				if (m < 0) {
+					break;
+				}
+				n += m;
+			}
+			in.reset();
+			if (BgzfInputStream.isBgzfHeader(header, n)) {
+				return new BgzfInputStream(in, inflaterThreads);
+			}
+			else if (n >= 2 && (header[0] & 0xFF) == 0x1f && (header[1] & 0xFF) == 0x8b) {
+				return new GZIPInputStream(in, 1 << 16);
+			}
+			else {
+				return in;
+			}
+		}
+		catch(IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts decoder thread immediately.
+	 *
+	 * @param batchSize max number of lines in a batch
+	 * @param queueDepth max number of decoded batches waiting for workers
+	 */
+	public LinePipeline(InputStream source, Charset charset, int batchSize, int queueDepth) {
+		if (batchSize < 1 || queueDepth < 1) {
+			throw new IllegalArgumentException("Batch size and queue depth should be positive");
+		}
+		this.source = source;
+		this.reader = new BufferedReader(new InputStreamReader(source, charset), 1 << 16);
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<List<String>>(queueDepth);
+		this.decoder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decode();
+			}
+		}, "LinePipeline-decoder");
+		this.decoder.setDaemon(true);
+		this.decoder.start();
+	}
+
+	/**
+	 * Blocks until next batch is available.
+	 *
+	 * @return next batch of lines or <code>null</code> if input is exhausted
+	 * @throws IOException if reading of input has failed
+	 */
+	public List<String> nextBatch() throws IOException {
+		if (closed) {
+			return null;
+		}
+		List<String> batch;
+		try {
+			batch = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		if (batch == END_OF_STREAM) {
+			// leave marker for other workers
+			queue.offer(END_OF_STREAM);
+			if (error != null) {
+				throw new IOException("Failed to read input: " + error.getMessage(), error);
+			}
+			return null;
+		}
+		return batch;
+	}
+
+	/**
+	 * @return number of lines decoded so far
+	 */
+	public long getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Stops decoder thread and closes input.
+	 */
+	public void close() {
+		closed = true;
+		decoder.interrupt();
+		queue.clear();
+		queue.offer(END_OF_STREAM);
+	}
+
+	private void decode() {
+		try {
+			List<String> batch = new ArrayList<String>(batchSize);
+			String line;
+			while(!closed && (line = reader.readLine()) != null) {
+				batch.add(line);
+				if (batch.size() == batchSize) {
+					queue.put(batch);
+					lineCount += batch.size();
+					batch = new ArrayList<String>(batchSize);
+				}
+			}
+			if (!batch.isEmpty() && !closed) {
+				queue.put(batch);
+				lineCount += batch.size();
+			}
+		}
+		catch(InterruptedException e) {
+			// closed
+		}
+		catch(Throwable e) {
+			// any failure should be reported to consumers, not seen as end of input
+			if (!closed) {
+				error = e;
+			}
+		}
+		finally {
+			try {
+				source.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			if (!closed) {
+				try {
+					queue.put(END_OF_STREAM);
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Buffered line reader over {@link RandomAccessFile} which keeps
+ * track of byte offset of each line.
+ */
+class OffsetLineReader {
+
+	private final RandomAccessFile file;
+	private final Charset charset;
+
+	private final byte[] buffer = new byte[1 << 16];
+	private long bufferOffset;
+	private int bufferLen;
+	private int pos;
+
+	private byte[] line = new byte[256];
+	private long lineOffset;
+
+	public OffsetLineReader(File file, Charset charset) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.charset = charset;
+	}
+
+	public long length() throws IOException {
+		return file.length();
+	}
+
+	public void seek(long offset) throws IOException {
+		if (offset >= bufferOffset && offset <= bufferOffset + bufferLen) {
+			pos = (int)(offset - bufferOffset);
+		}
+		else {
+			file.seek(offset);
+			bufferOffset = offset;
+			bufferLen = 0;
+			pos = 0;
+		}
+	}
+
+	/**
+	 * @return offset of next line to be read
+	 */
+	public long position() {
+		return bufferOffset + pos;
+	}
+
+	/**
+	 * @return offset of last line returned by {@link #readLine()}
+	 */
+	public long lineOffset() {
+		return lineOffset;
+	}
+
+	/**
+	 * Positions reader at start of next line, unless it is already at line start.
+	 */
+	public void alignToLine() throws IOException {
+		long p = position();
+		if (p == 0) {
+			return;
+		}
+		seek(p - 1);
+		int b;
+		while((b = read()) >= 0) {
+			if (b == '\n') {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return next line without line terminator or <code>null</code> at end of file
+	 */
+	public String readLine() throws IOException {
+		lineOffset = position();
+		int len = 0;
+		int b;
+		while((b = read()) >= 0) {
+			if (b == '\n') {
+				break;
+			}
+			if (len == line.length) {
+				line = Arrays.copyOf(line, 2 * line.length);
+			}
+			line[len++] = (byte)b;
+		}
+		if (b < 0 && len == 0) {
+			return null;
+		}
+		if (len > 0 && line[len - 1] == '\r') {
+			--len;
+		}
+		return new String(line, 0, len, charset);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private int read() throws IOException {
+		if (pos == bufferLen) {
+			bufferOffset += bufferLen;
+			pos = 0;
+			bufferLen = 0;
+			file.seek(bufferOffset);
+			int n = file.read(buffer);
+			if (n <= 0) {
+				return -1;
+			}
+			bufferLen = n;
+		}
+		return buffer[pos++] & 0xFF;
+	}
+}
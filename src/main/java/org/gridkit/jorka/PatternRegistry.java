@@ -0,0 +1,393 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.gridkit.jorka.Jorka.Match;
+
+import com.google.code.regexp.Matcher;
+import com.google.code.regexp.Pattern;
+
+/**
+ * <p>
+ * Holds compiled pattern library loaded from pattern files and
+ * reloads it once files are changed.
+ * </p>
+ * <p>
+ * New version of library is loaded, compiled and validated in background,
+ * then published with single atomic reference swap. Matching threads
+ * obtain current {@link Library} via {@link #get()} without locking,
+ * in-flight matches complete on version they have started with.
+ * If new version fails validation, previous one stays in use.
+ * </p>
+ * <pre>
+ * PatternRegistry registry = PatternRegistry.forDirectory(new File("patterns"));
+ * registry.define("access", "%{COMMONAPACHELOG}");
+ * registry.reload();
+ * registry.start(1000);
+ * ...
+ * Match m = registry.get().match("access", line);
+ * </pre>
+ */
+public class PatternRegistry {
+
+	private static final Pattern REFERENCE_RE = Pattern.compile("%\\{(?<pattern>[A-z0-9]+)(?::[A-z0-9_:]+)?(?<definition>=)?");
+
+	public interface Listener {
+
+		public void onReload(Library library);
+
+		public void onError(Throwable error);
+	}
+
+	private final File directory;
+	private final List<File> files;
+
+	private final Map<String, String> expressions = new LinkedHashMap<String, String>();
+	private final Map<String, List<String>> samples = new LinkedHashMap<String, List<String>>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final AtomicReference<Library> current = new AtomicReference<Library>();
+	private volatile Throwable lastError;
+	private List<String> fingerprint = Collections.emptyList();
+	private ScheduledExecutorService watcher;
+
+	/**
+	 * Pattern files are loaded in given order.
+	 */
+	public PatternRegistry(List<File> files) {
+		this(null, files);
+	}
+
+	/**
+	 * All files in directory are loaded in order of their names.
+	 * Files added or removed from directory are picked up on reload.
+	 */
+	public static PatternRegistry forDirectory(File directory) {
+		return new PatternRegistry(directory, null);
+	}
+
+	private PatternRegistry(File directory, List<File> files) {
+		this.directory = directory;
+		this.files = files == null ? null : new ArrayList<File>(files);
+	}
+
+	/**
+	 * Defines named expression to be compiled with each version of library.
+	 * Takes effect on next reload.
+	 */
+	public synchronized void define(String name, String expression) {
+		expressions.put(name, expression);
+	}
+
+	/**
+	 * Adds sample line, which expression should match for library to pass validation.
+	 * Takes effect on next reload.
+	 */
+	public synchronized void addSample(String name, String line) {
+		if (!samples.containsKey(name)) {
+			samples.put(name, new ArrayList<String>());
+		}
+		samples.get(name).add(line);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @return current version of library, <code>null</code> if none was loaded successfully yet
+	 */
+	public Library get() {
+		return current.get();
+	}
+
+	/**
+	 * @return error of last failed reload attempt, <code>null</code> if last reload was successful
+	 */
+	public Throwable getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Loads, compiles and validates library, publishing it on success.
+	 *
+	 * @return <code>true</code> if new version was published
+	 */
+	public synchronized boolean reload() {
+		List<File> sources = listFiles();
+		fingerprint = fingerprint(sources);
+		Library lib;
+		try {
+			Library prev = current.get();
+			lib = build(sources, prev == null ? 1 : prev.version + 1);
+		}
+		catch(Exception e) {
+			reportError(e);
+			return false;
+		}
+		current.set(lib);
+		lastError = null;
+		for(Listener l: listeners) {
+			try {
+				l.onReload(lib);
+			}
+			catch(Throwable e) {
+				// new version is already published, listener failure should not affect it or other listeners
+			}
+		}
+		return true;
+	}
+
+	private void reportError(Throwable error) {
+		lastError = error;
+		for(Listener l: listeners) {
+			try {
+				l.onError(error);
+			}
+			catch(Throwable e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Starts background thread polling pattern files for changes.
+	 */
+	public synchronized void start(long pollIntervalMs) {
+		if (watcher != null) {
+			throw new IllegalStateException("Already started");
+		}
+		watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PatternRegistry-watcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkForChanges();
+				}
+				catch(Throwable e) {
+					// anything escaping task would cancel further polling
+					reportError(e);
+				}
+			}
+		}, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (watcher != null) {
+			watcher.shutdownNow();
+			watcher = null;
+		}
+	}
+
+	private void checkForChanges() {
+		List<String> fp = fingerprint(listFiles());
+		boolean changed;
+		synchronized (this) {
+			changed = !fp.equals(fingerprint);
+		}
+		if (changed) {
+			reload();
+		}
+	}
+
+	private List<File> listFiles() {
+		if (directory == null) {
+			return files;
+		}
+		File[] list = directory.listFiles();
+		List<File> result = new ArrayList<File>();
+		if (list != null) {
+			Arrays.sort(list);
+			for(File f: list) {
+				if (f.isFile() && !f.isHidden()) {
+					result.add(f);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static List<String> fingerprint(List<File> files) {
+		List<String> fp = new ArrayList<String>();
+		for(File f: files) {
+			fp.add(f.getPath() + ":" + f.length() + ":" + f.lastModified());
+		}
+		return fp;
+	}
+
+	private Library build(List<File> sources, int version) throws IOException {
+		Jorka base = new Jorka();
+		for(File f: sources) {
+			FileReader reader = new FileReader(f);
+			try {
+				base.addPatternFromReader(reader);
+			}
+			catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("Error in " + f.getPath() + ": " + e.getMessage(), e);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		Map<String, Jorka> compiled = new LinkedHashMap<String, Jorka>();
+		for(Map.Entry<String, String> e: expressions.entrySet()) {
+			String name = e.getKey();
+			checkReferences(base.getPatterns(), name, e.getValue(), new LinkedHashSet<String>(), new HashSet<String>());
+			Jorka j = base.copyPatterns();
+			try {
+				j.compile(e.getValue());
+			}
+			catch(RuntimeException x) {
+				throw new IllegalArgumentException("Cannot compile '" + name + "': " + x.getMessage(), x);
+			}
+			if (samples.containsKey(name)) {
+				for(String line: samples.get(name)) {
+					if (j.match(line) == null) {
+						throw new IllegalArgumentException("Expression '" + name + "' does not match sample: " + line);
+					}
+				}
+			}
+			compiled.put(name, j);
+		}
+		return new Library(version, Collections.unmodifiableMap(new LinkedHashMap<String, String>(base.getPatterns())), Collections.unmodifiableMap(compiled));
+	}
+
+	/**
+	 * Unknown pattern names are silently expanded to garbage by {@link Jorka}
+	 * and cyclic references would expand forever, so they are verified upfront.
+	 *
+	 * @param path patterns being expanded, used to detect cycles
+	 * @param checked patterns already verified or defined inline
+	 */
+	private static void checkReferences(Map<String, String> patterns, String name, String expression, Set<String> path, Set<String> checked) {
+		Matcher m = REFERENCE_RE.matcher(expression);
+		while(m.find()) {
+			String ref = m.group("pattern");
+			if (m.group("definition") != null) {
+				// inline definition, pattern is known for rest of expression
+				checked.add(ref);
+				continue;
+			}
+			if (path.contains(ref)) {
+				StringBuilder sb = new StringBuilder();
+				for(String p: path) {
+					sb.append(p).append(" -> ");
+				}
+				sb.append(ref);
+				throw new IllegalArgumentException("Expression '" + name + "' has cyclic pattern reference " + sb);
+			}
+			if (checked.contains(ref)) {
+				continue;
+			}
+			if (!patterns.containsKey(ref)) {
+				throw new IllegalArgumentException("Expression '" + name + "' refers to unknown pattern " + ref);
+			}
+			path.add(ref);
+			checkReferences(patterns, name, patterns.get(ref), path, checked);
+			path.remove(ref);
+			checked.add(ref);
+		}
+	}
+
+	/**
+	 * Immutable version of compiled library.
+	 * <p>
+	 * {@link Jorka} instances of library are shared between threads
+	 * and should not be modified.
+	 */
+	public static class Library {
+
+		private final int version;
+		private final Map<String, String> patterns;
+		private final Map<String, Jorka> expressions;
+
+		Library(int version, Map<String, String> patterns, Map<String, Jorka> expressions) {
+			this.version = version;
+			this.patterns = patterns;
+			this.expressions = expressions;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return raw pattern definitions of this version
+		 */
+		public Map<String, String> getPatterns() {
+			return patterns;
+		}
+
+		public Set<String> getNames() {
+			return expressions.keySet();
+		}
+
+		/**
+		 * @return compiled expression
+		 * @throws IllegalArgumentException if expression is not defined
+		 */
+		public Jorka get(String name) {
+			Jorka j = expressions.get(name);
+			if (j == null) {
+				throw new IllegalArgumentException("Unknown expression '" + name + "'");
+			}
+			return j;
+		}
+
+		public Match match(String name, String text) {
+			return get(name).match(text);
+		}
+
+		public Match find(String name, String text) {
+			return get(name).find(text);
+		}
+
+		/**
+		 * @return new Jorka with all patterns of this version, e.g. to compile ad hoc expression
+		 */
+		public Jorka newJorka() {
+			Jorka j = new Jorka();
+			j.addPatterns(patterns);
+			return j;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+/**
+ * Mergeable histogram with logarithmic buckets (HDR style).
+ * <p>
+ * Quantiles are reported with bounded relative error,
+ * memory depends only on range of values, not on their number.
+ */
+class QuantileHistogram {
+
+	private static final double ZERO_THRESHOLD = 1e-9;
+
+	private final double gamma;
+	private final double logGamma;
+
+	private final Buckets positive = new Buckets();
+	private final Buckets negative = new Buckets();
+	private long zeroCount;
+	private long count;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+
+	/**
+	 * @param relativeError accuracy of reported quantiles, e.g. 0.01 for 1%
+	 */
+	public QuantileHistogram(double relativeError) {
+		if (relativeError <= 0 || relativeError >= 1) {
+			throw new IllegalArgumentException("Relative error should be in range (0, 1)");
+		}
+		this.gamma = (1 + relativeError) / (1 - relativeError);
+		this.logGamma = Math.log(gamma);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		if (value > ZERO_THRESHOLD) {
+			positive.add(index(value), 1);
+		}
+		else if (value < -ZERO_THRESHOLD) {
+			negative.add(index(-value), 1);
+		}
+		else {
+			++zeroCount;
+		}
+		if (count == 0 || value < min) {
+			min = value;
+		}
+		if (count == 0 || value > max) {
+			max = value;
+		}
+		++count;
+	}
+
+	public void merge(QuantileHistogram that) {
+		if (that.gamma != gamma) {
+			throw new IllegalArgumentException("Accuracy mismatch");
+		}
+		if (that.count == 0) {
+			return;
+		}
+		positive.merge(that.positive);
+		negative.merge(that.negative);
+		zeroCount += that.zeroCount;
+		if (count == 0 || that.min < min) {
+			min = that.min;
+		}
+		if (count == 0 || that.max > max) {
+			max = that.max;
+		}
+		count += that.count;
+	}
+
+	/**
+	 * @return estimated value at quantile <tt>q</tt> or {@link Double#NaN} if histogram is empty
+	 */
+	public double quantile(double q) {
+		if (q < 0 || q > 1) {
+			throw new IllegalArgumentException("Quantile should be in range [0, 1]");
+		}
+		if (count == 0) {
+			return Double.NaN;
+		}
+		long rank = (long)(q * (count - 1));
+		double value;
+		if (rank < negative.total) {
+			// negative buckets are walked from largest magnitude
+			value = -bucketValue(negative.indexAtRank(negative.total - 1 - rank));
+		}
+		else if (rank < negative.total + zeroCount) {
+			value = 0;
+		}
+		else {
+			value = bucketValue(positive.indexAtRank(rank - negative.total - zeroCount));
+		}
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private int index(double value) {
+		return (int)Math.ceil(Math.log(value) / logGamma);
+	}
+
+	private double bucketValue(int index) {
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+	private static class Buckets {
+
+		int offset;
+		long[] counts;
+		long total;
+
+		void add(int index, long n) {
+			if (counts == null) {
+				offset = index;
+				counts = new long[16];
+			}
+			else if (index < offset) {
+				int shift = Math.max(offset - index, counts.length / 2);
+				long[] c = new long[counts.length + shift];
+				System.arraycopy(counts, 0, c, shift, counts.length);
+				counts = c;
+				offset -= shift;
+			}
+			else if (index - offset >= counts.length) {
+				int len = Math.max(index - offset + 1, counts.length + counts.length / 2);
+				long[] c = new long[len];
+				System.arraycopy(counts, 0, c, 0, counts.length);
+				counts = c;
+			}
+			counts[index - offset] += n;
+			total += n;
+		}
+
+		void merge(Buckets that) {
+			if (that.counts != null) {
+				for(int i = 0; i != that.counts.length; ++i) {
+					if (that.counts[i] != 0) {
+						add(that.offset + i, that.counts[i]);
+					}
+				}
+			}
+		}
+
+		int indexAtRank(long rank) {
+			long n = 0;
+			for(int i = 0; i != counts.length; ++i) {
+				n += counts[i];
+				if (n > rank) {
+					return offset + i;
+				}
+			}
+			throw new IllegalStateException("Rank " + rank + " is out of range");
+		}
+	}
+}
@@ -0,0 +1,650 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gridkit.jorka.Jorka.Match;
+
+/**
+ * <p>
+ * Non blocking syslog receiver (UDP and TCP).
+ * </p>
+ * <p>
+ * Single selector thread reads network input into pooled buffers and
+ * splits it into messages. TCP supports both octet counting and newline
+ * framing (RFC 6587), each UDP datagram is a single message. Messages are
+ * handed to worker threads through a bounded queue, workers match them
+ * against patterns (e.g. RFC 5424 and RFC 3164 lines) and pass results
+ * to {@link Sink}. If queue is full, message is dropped and counted.
+ * </p>
+ */
+public class SyslogReceiver {
+
+	public interface Sink {
+
+		/**
+		 * Called with parsed match of first pattern matching message.
+		 */
+		public void onMessage(Match match);
+
+		public void onUnmatched(String message);
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Octet count of RFC 6587 frame cannot be longer, larger values are not representable anyway */
+	private static final int MAX_OCTET_DIGITS = 10;
+
+	private final List<Jorka> patterns;
+	private final Sink sink;
+
+	private int workerThreads = 1;
+	private int queueCapacity = 16 << 10;
+	private int maxMessageSize = 8 << 10;
+	private int bufferPoolSize = 64;
+
+	private final List<InetSocketAddress> udpBinds = new ArrayList<InetSocketAddress>();
+	private final List<InetSocketAddress> tcpBinds = new ArrayList<InetSocketAddress>();
+	private final List<InetSocketAddress> udpAddresses = new ArrayList<InetSocketAddress>();
+	private final List<InetSocketAddress> tcpAddresses = new ArrayList<InetSocketAddress>();
+
+	private final List<Channel> listenerChannels = new ArrayList<Channel>();
+
+	private Selector selector;
+	private BlockingQueue<String> queue;
+	private BlockingQueue<ByteBuffer> bufferPool;
+	private Thread selectorThread;
+	private List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean stopped;
+	private volatile Throwable error;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong oversized = new AtomicLong();
+	private final AtomicLong matched = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param patterns compiled patterns, tried in order; should not be modified while receiver is running
+	 */
+	public SyslogReceiver(List<Jorka> patterns, Sink sink) {
+		for(Jorka j: patterns) {
+			if (j.getRegEx() == null) {
+				throw new IllegalArgumentException("Pattern is not compiled");
+			}
+		}
+		this.patterns = new ArrayList<Jorka>(patterns);
+		this.sink = sink;
+	}
+
+	public void setWorkerThreads(int workerThreads) {
+		checkNotStarted();
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @param queueCapacity max number of messages waiting for workers, default is 16384
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		checkNotStarted();
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Larger messages are discarded and counted as oversized.
+	 *
+	 * @param maxMessageSize in bytes, default is 8192
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		checkNotStarted();
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * @param bufferPoolSize number of read buffers retained for reuse by TCP connections
+	 */
+	public void setBufferPoolSize(int bufferPoolSize) {
+		checkNotStarted();
+		this.bufferPoolSize = bufferPoolSize;
+	}
+
+	/**
+	 * Use port 0 to bind to ephemeral port, actual address
+	 * is available via {@link #getUdpAddresses()} after start.
+	 */
+	public void addUdpListener(InetSocketAddress address) {
+		checkNotStarted();
+		udpBinds.add(address);
+	}
+
+	public void addTcpListener(InetSocketAddress address) {
+		checkNotStarted();
+		tcpBinds.add(address);
+	}
+
+	public List<InetSocketAddress> getUdpAddresses() {
+		return udpAddresses;
+	}
+
+	public List<InetSocketAddress> getTcpAddresses() {
+		return tcpAddresses;
+	}
+
+	/**
+	 * @return number of messages received from network
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return number of messages dropped due to overload
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of messages discarded due to size limit
+	 */
+	public long getOversizedCount() {
+		return oversized.get();
+	}
+
+	public long getMatchedCount() {
+		return matched.get();
+	}
+
+	public long getUnmatchedCount() {
+		return unmatched.get();
+	}
+
+	/**
+	 * @return number of messages whose parsing or delivery to {@link Sink} has thrown exception
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return <code>true</code> if receiver is started, not stopped and has not failed
+	 */
+	public boolean isRunning() {
+		return selector != null && !stopped && error == null;
+	}
+
+	/**
+	 * @return failure which has terminated receiver, <code>null</code> if receiver is running or was stopped normally
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public synchronized void start() throws IOException {
+		checkNotStarted();
+		queue = new ArrayBlockingQueue<String>(queueCapacity);
+		bufferPool = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, bufferPoolSize));
+		selector = Selector.open();
+		try {
+			for(InetSocketAddress addr: udpBinds) {
+				DatagramChannel ch = DatagramChannel.open();
+				listenerChannels.add(ch);
+				ch.socket().bind(addr);
+				ch.configureBlocking(false);
+				// extra byte allows to tell datagram of exactly max size from truncated one
+				ch.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(maxMessageSize + 1));
+				udpAddresses.add((InetSocketAddress)ch.socket().getLocalSocketAddress());
+			}
+			for(InetSocketAddress addr: tcpBinds) {
+				ServerSocketChannel ch = ServerSocketChannel.open();
+				listenerChannels.add(ch);
+				ch.socket().setReuseAddress(true);
+				ch.socket().bind(addr);
+				ch.configureBlocking(false);
+				ch.register(selector, SelectionKey.OP_ACCEPT);
+				tcpAddresses.add((InetSocketAddress)ch.socket().getLocalSocketAddress());
+			}
+		}
+		catch(IOException e) {
+			closeChannels();
+			throw e;
+		}
+		for(int i = 0; i != workerThreads; ++i) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "SyslogReceiver-worker-" + i);
+			t.setDaemon(true);
+			workers.add(t);
+			t.start();
+		}
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				select();
+			}
+		}, "SyslogReceiver-selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * Closes all sockets and stops worker threads, waiting for them to finish.
+	 * Messages still in queue are discarded.
+	 */
+	public synchronized void stop() {
+		if (selector == null || stopped) {
+			return;
+		}
+		stopped = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for(Thread t: workers) {
+			t.interrupt();
+		}
+		for(Thread t: workers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private void checkNotStarted() {
+		if (selector != null) {
+			throw new IllegalStateException("Receiver is already started");
+		}
+	}
+
+	private void select() {
+		try {
+			while(!stopped) {
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					// listener keys should survive errors, only connection keys are closed
+					if (key.isAcceptable()) {
+						accept(key);
+					}
+					else if (key.channel() instanceof DatagramChannel) {
+						receiveDatagrams(key);
+					}
+					else {
+						try {
+							readStream(key);
+						}
+						catch(IOException e) {
+							closeConnection(key);
+						}
+					}
+				}
+			}
+		}
+		catch(Throwable e) {
+			// selector failure, shutting down
+			if (!stopped) {
+				error = e;
+			}
+		}
+		finally {
+			closeChannels();
+			if (!stopped) {
+				// receiver has failed, nothing would feed workers anymore
+				for(Thread t: workers) {
+					t.interrupt();
+				}
+			}
+		}
+	}
+
+	private void accept(SelectionKey key) {
+		SocketChannel ch;
+		try {
+			ch = ((ServerSocketChannel)key.channel()).accept();
+		}
+		catch(IOException e) {
+			// e.g. out of file descriptors, listener remains open
+			return;
+		}
+		if (ch == null) {
+			return;
+		}
+		ByteBuffer buffer = bufferPool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(maxMessageSize + 16);
+		}
+		try {
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ, new TcpSession(buffer));
+		}
+		catch(IOException e) {
+			try {
+				ch.close();
+			} catch (IOException x) {
+				// ignore
+			}
+			buffer.clear();
+			bufferPool.offer(buffer);
+		}
+	}
+
+	private void receiveDatagrams(SelectionKey key) {
+		DatagramChannel ch = (DatagramChannel)key.channel();
+		ByteBuffer buffer = (ByteBuffer)key.attachment();
+		while(true) {
+			buffer.clear();
+			try {
+				if (ch.receive(buffer) == null) {
+					break;
+				}
+			}
+			catch(IOException e) {
+				// failure of single receive, listener remains open
+				break;
+			}
+			if (buffer.position() > maxMessageSize) {
+				// datagram was truncated
+				received.incrementAndGet();
+				oversized.incrementAndGet();
+				continue;
+			}
+			int len = buffer.position();
+			while(len > 0 && (buffer.get(len - 1) == '\n' || buffer.get(len - 1) == '\r' || buffer.get(len - 1) == 0)) {
+				--len;
+			}
+			if (len > 0) {
+				emit(buffer.array(), 0, len);
+			}
+		}
+	}
+
+	private void readStream(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel)key.channel();
+		TcpSession session = (TcpSession)key.attachment();
+		while(true) {
+			int n = ch.read(session.buffer);
+			if (n > 0) {
+				session.buffer.flip();
+				session.decode();
+				session.buffer.compact();
+			}
+			if (n < 0) {
+				session.buffer.flip();
+				session.flush();
+				closeConnection(key);
+				break;
+			}
+			if (n == 0) {
+				break;
+			}
+		}
+	}
+
+	private void closeConnection(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// ignore
+		}
+		if (key.attachment() instanceof TcpSession) {
+			ByteBuffer buffer = ((TcpSession)key.attachment()).buffer;
+			buffer.clear();
+			bufferPool.offer(buffer);
+		}
+	}
+
+	private void closeChannels() {
+		// listeners are tracked separately, as they should be closed even if selector is broken
+		for(Channel ch: listenerChannels) {
+			try {
+				ch.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		try {
+			for(SelectionKey key: selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			selector.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		catch(ClosedSelectorException e) {
+			// ignore
+		}
+	}
+
+	private void emit(byte[] data, int offset, int len) {
+		received.incrementAndGet();
+		String message = new String(data, offset, len, UTF8);
+		if (!queue.offer(message)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void work() {
+		while(!stopped) {
+			String message;
+			try {
+				message = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				process(message);
+			}
+			catch(Throwable e) {
+				// sink or regex failure (e.g. StackOverflowError) should not stop worker
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	private void process(String message) {
+		for(Jorka j: patterns) {
+			Match m = j.match(message);
+			if (m != null) {
+				matched.incrementAndGet();
+				m.parse();
+				sink.onMessage(m);
+				return;
+			}
+		}
+		unmatched.incrementAndGet();
+		sink.onUnmatched(message);
+	}
+
+	/**
+	 * Framing state of TCP connection.
+	 */
+	private class TcpSession {
+
+		final ByteBuffer buffer;
+
+		/** Remaining length of octet counted message being discarded */
+		long skip;
+		/** Discarding oversized newline framed message */
+		boolean skipLine;
+
+		TcpSession(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Extracts complete messages from buffer (in read mode).
+		 */
+		void decode() {
+			while(buffer.hasRemaining()) {
+				if (skip > 0) {
+					int n = (int)Math.min(skip, buffer.remaining());
+					buffer.position(buffer.position() + n);
+					skip -= n;
+					continue;
+				}
+				if (skipLine) {
+					int eol = indexOf('\n', buffer.position(), buffer.limit());
+					if (eol < 0) {
+						buffer.position(buffer.limit());
+					}
+					else {
+						buffer.position(eol + 1);
+						skipLine = false;
+					}
+					continue;
+				}
+				int start = buffer.position();
+				byte first = buffer.get(start);
+				if (first == '\n' || first == '\r' || first == 0) {
+					buffer.position(start + 1);
+				}
+				else if (first >= '0' && first <= '9') {
+					if (!decodeOctetCounted(start)) {
+						break;
+					}
+				}
+				else {
+					if (!decodeLine(start)) {
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Handles end of stream, incomplete newline framed message is emitted as is.
+		 */
+		void flush() {
+			decode();
+			if (buffer.hasRemaining() && skip == 0 && !skipLine) {
+				byte first = buffer.get(buffer.position());
+				if (first < '0' || first > '9') {
+					emitTrimmed(buffer.position(), buffer.limit());
+				}
+			}
+			buffer.position(buffer.limit());
+		}
+
+		private boolean decodeOctetCounted(int start) {
+			int limit = buffer.limit();
+			long len = 0;
+			int i = start;
+			while(i < limit && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+				len = 10 * len + (buffer.get(i) - '0');
+				++i;
+				if (i - start > MAX_OCTET_DIGITS) {
+					// garbage (e.g. run of zeros), treat as oversized line
+					skipLine = true;
+					received.incrementAndGet();
+					oversized.incrementAndGet();
+					return true;
+				}
+			}
+			if (i == limit) {
+				return false;
+			}
+			if (buffer.get(i) != ' ') {
+				// not octet counted after all, e.g. line starting with digits
+				return decodeLine(start);
+			}
+			int body = i + 1;
+			if (len > maxMessageSize) {
+				received.incrementAndGet();
+				oversized.incrementAndGet();
+				skip = len;
+				buffer.position(body);
+				return true;
+			}
+			if (limit - body < len) {
+				return false;
+			}
+			emitTrimmed(body, body + (int)len);
+			buffer.position(body + (int)len);
+			return true;
+		}
+
+		private boolean decodeLine(int start) {
+			int eol = indexOf('\n', start, buffer.limit());
+			if (eol < 0) {
+				if (buffer.limit() - start >= maxMessageSize) {
+					received.incrementAndGet();
+					oversized.incrementAndGet();
+					skipLine = true;
+					buffer.position(buffer.limit());
+					return true;
+				}
+				return false;
+			}
+			emitTrimmed(start, eol);
+			buffer.position(eol + 1);
+			return true;
+		}
+
+		private void emitTrimmed(int start, int end) {
+			while(end > start && (buffer.get(end - 1) == '\n' || buffer.get(end - 1) == '\r' || buffer.get(end - 1) == 0)) {
+				--end;
+			}
+			if (end > start) {
+				emit(buffer.array(), buffer.arrayOffset() + start, end - start);
+			}
+		}
+
+		private int indexOf(char c, int from, int to) {
+			for(int i = from; i < to; ++i) {
+				if (buffer.get(i) == c) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
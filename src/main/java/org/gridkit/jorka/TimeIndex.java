@@ -0,0 +1,229 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Sparse index of log file, mapping byte offset to timestamp
+ * roughly every <tt>interval</tt> bytes.
+ * </p>
+ * <p>
+ * Index is persisted next to log file and considered stale
+ * once size or modification time of log is changed, or it was
+ * built with differently configured {@link TimestampExtractor}.
+ * Timestamps in log are expected to be non decreasing.
+ * </p>
+ */
+public class TimeIndex {
+
+	public static final int DEFAULT_INTERVAL = 64 << 10;
+	public static final String INDEX_SUFFIX = ".tsidx";
+
+	private static final int MAGIC = 0x4A544958; // JTIX
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 40;
+
+	private final long fingerprint;
+	private final long logLength;
+	private final long logModified;
+	private final int interval;
+	private final long[] offsets;
+	private final long[] times;
+
+	private TimeIndex(long fingerprint, long logLength, long logModified, int interval, long[] offsets, long[] times) {
+		this.fingerprint = fingerprint;
+		this.logLength = logLength;
+		this.logModified = logModified;
+		this.interval = interval;
+		this.offsets = offsets;
+		this.times = times;
+	}
+
+	/**
+	 * Loads index from default location or builds and saves a new one.
+	 */
+	public static TimeIndex open(File log, TimestampExtractor extractor, int interval) throws IOException {
+		return open(log, extractor, interval, indexFileFor(log));
+	}
+
+	/**
+	 * Loads index from given file or builds and saves a new one.
+	 * If index cannot be saved (e.g. directory is not writable),
+	 * built index is returned without being persisted.
+	 */
+	public static TimeIndex open(File log, TimestampExtractor extractor, int interval, File indexFile) throws IOException {
+		TimeIndex index = load(indexFile, log, extractor);
+		if (index == null || index.interval != interval) {
+			index = build(log, extractor, interval);
+			try {
+				index.save(indexFile);
+			}
+			catch(IOException e) {
+				// index is still usable in memory
+				indexFile.delete();
+			}
+		}
+		return index;
+	}
+
+	public static File indexFileFor(File log) {
+		return new File(log.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Scans whole log file and records offset and timestamp of first
+	 * timestamped line after each <tt>interval</tt> bytes.
+	 */
+	public static TimeIndex build(File log, TimestampExtractor extractor, int interval) throws IOException {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Interval should be positive");
+		}
+		extractor.useReferenceOf(log);
+		long length = log.length();
+		long modified = log.lastModified();
+		long[] offsets = new long[16];
+		long[] times = new long[16];
+		int n = 0;
+		OffsetLineReader reader = new OffsetLineReader(log, Charset.forName("UTF-8"));
+		try {
+			long next = 0;
+			String line;
+			while((line = reader.readLine()) != null) {
+				long offset = reader.lineOffset();
+				if (offset >= next) {
+					long ts = extractor.extract(line);
+					if (ts != TimestampExtractor.NO_TIMESTAMP) {
+						if (n == offsets.length) {
+							offsets = Arrays.copyOf(offsets, 2 * n);
+							times = Arrays.copyOf(times, 2 * n);
+						}
+						offsets[n] = offset;
+						times[n] = ts;
+						++n;
+						next = offset + interval;
+					}
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return new TimeIndex(extractor.getFingerprint(), length, modified, interval, Arrays.copyOf(offsets, n), Arrays.copyOf(times, n));
+	}
+
+	/**
+	 * @param extractor extractor index is going to be used with
+	 * @return index or <code>null</code> if index file is missing, corrupted or stale
+	 */
+	public static TimeIndex load(File indexFile, File log, TimestampExtractor extractor) {
+		if (!indexFile.isFile()) {
+			return null;
+		}
+		extractor.useReferenceOf(log);
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+					return null;
+				}
+				long fingerprint = dis.readLong();
+				long length = dis.readLong();
+				long modified = dis.readLong();
+				if (fingerprint != extractor.getFingerprint() || length != log.length() || modified != log.lastModified()) {
+					return null;
+				}
+				int interval = dis.readInt();
+				int n = dis.readInt();
+				// count is verified against file size before allocating arrays
+				if (n < 0 || HEADER_SIZE + 16l * n != indexFile.length()) {
+					return null;
+				}
+				long[] offsets = new long[n];
+				long[] times = new long[n];
+				for(int i = 0; i != n; ++i) {
+					offsets[i] = dis.readLong();
+					times[i] = dis.readLong();
+				}
+				return new TimeIndex(fingerprint, length, modified, interval, offsets, times);
+			}
+			finally {
+				dis.close();
+			}
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+
+	public void save(File indexFile) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(fingerprint);
+			dos.writeLong(logLength);
+			dos.writeLong(logModified);
+			dos.writeInt(interval);
+			dos.writeInt(offsets.length);
+			for(int i = 0; i != offsets.length; ++i) {
+				dos.writeLong(offsets[i]);
+				dos.writeLong(times[i]);
+			}
+		}
+		finally {
+			dos.close();
+		}
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * @return offset of last indexed line with timestamp strictly before <tt>time</tt>, or 0
+	 */
+	public long seekOffset(long time) {
+		int lo = 0;
+		int hi = times.length - 1;
+		int found = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < time) {
+				found = mid;
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return found < 0 ? 0 : offsets[found];
+	}
+}
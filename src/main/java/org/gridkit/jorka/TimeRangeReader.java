@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * Reads only lines of log file with timestamps in range <tt>[from, to)</tt>.
+ * </p>
+ * <p>
+ * Start of range is located using {@link TimeIndex} if provided,
+ * otherwise by binary search over file. Lines without timestamp
+ * (e.g. stack traces) belong to preceding timestamped line.
+ * Timestamps in log are expected to be non decreasing.
+ * </p>
+ */
+public class TimeRangeReader {
+
+	private static final int SCAN_THRESHOLD = 64 << 10;
+
+	private final OffsetLineReader reader;
+	private final TimestampExtractor extractor;
+	private final long from;
+	private final long to;
+
+	private long current = TimestampExtractor.NO_TIMESTAMP;
+	private boolean started;
+	private boolean finished;
+
+	/**
+	 * @param index sparse index of log, may be <code>null</code>
+	 */
+	public TimeRangeReader(File log, TimestampExtractor extractor, TimeIndex index, long from, long to) throws IOException {
+		this.reader = new OffsetLineReader(log, Charset.forName("UTF-8"));
+		this.extractor = extractor;
+		this.extractor.useReferenceOf(log);
+		this.from = from;
+		this.to = to;
+		try {
+			reader.seek(index != null ? index.seekOffset(from) : binarySearch());
+		}
+		catch(IOException e) {
+			reader.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return next line in range or <code>null</code> if range is exhausted
+	 */
+	public String readLine() throws IOException {
+		if (finished) {
+			return null;
+		}
+		String line;
+		while((line = reader.readLine()) != null) {
+			long ts = extractor.extract(line);
+			if (ts != TimestampExtractor.NO_TIMESTAMP) {
+				current = ts;
+			}
+			if (current != TimestampExtractor.NO_TIMESTAMP && current >= to) {
+				break;
+			}
+			if (started || (current != TimestampExtractor.NO_TIMESTAMP && current >= from)) {
+				started = true;
+				return line;
+			}
+		}
+		finished = true;
+		return null;
+	}
+
+	public void close() throws IOException {
+		finished = true;
+		reader.close();
+	}
+
+	/**
+	 * @return offset of a line start, which is not after first line in range
+	 */
+	private long binarySearch() throws IOException {
+		long lo = 0;
+		long hi = reader.length();
+		while(hi - lo > SCAN_THRESHOLD) {
+			long mid = lo + (hi - lo) / 2;
+			reader.seek(mid);
+			reader.alignToLine();
+			long ts = TimestampExtractor.NO_TIMESTAMP;
+			long offset = -1;
+			String line;
+			while(reader.position() < hi && (line = reader.readLine()) != null) {
+				ts = extractor.extract(line);
+				if (ts != TimestampExtractor.NO_TIMESTAMP) {
+					offset = reader.lineOffset();
+					break;
+				}
+			}
+			if (offset >= 0 && ts < from) {
+				lo = offset;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
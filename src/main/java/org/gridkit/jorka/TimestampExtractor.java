@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.File;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.google.code.regexp.Matcher;
+import com.google.code.regexp.Pattern;
+
+/**
+ * <p>
+ * Extracts timestamp from a log line using compiled {@link Jorka}
+ * and {@link SimpleDateFormat}, e.g.
+ * </p>
+ * <pre>
+ * jorka.compile("\\[%{HTTPDATE:timestamp}\\]");
+ * new TimestampExtractor(jorka, "timestamp", "dd/MMM/yyyy:HH:mm:ss Z");
+ * </pre>
+ * <p>
+ * Pattern is searched anywhere in line. Runs of whitespace in captured
+ * value are collapsed before parsing, so <tt>SYSLOGTIMESTAMP</tt> could
+ * be parsed with <tt>"MMM d HH:mm:ss"</tt>.
+ * </p>
+ * <p>
+ * If format has no year, timestamp is placed into latest year which does not put
+ * it after reference time (plus a day of tolerance), same as syslog readers do.
+ * Unless set explicitly, reference time is current time, {@link TimeIndex} and
+ * {@link TimeRangeReader} use modification time of log file instead.
+ * This handles Dec to Jan rollover for logs spanning less than a year.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class TimestampExtractor {
+
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	private static final long YEAR_TOLERANCE = 24 * 3600 * 1000l;
+
+	private final Pattern regexp;
+	private final String field;
+	private final String[] groups;
+	private final String dateFormat;
+	private final SimpleDateFormat format;
+	private final boolean hasYear;
+
+	private long referenceTime = System.currentTimeMillis();
+	private boolean explicitReference;
+	private int referenceYear;
+
+	public TimestampExtractor(Jorka jorka, String field, String dateFormat) {
+		this(jorka, field, dateFormat, TimeZone.getDefault());
+	}
+
+	/**
+	 * @param timeZone time zone used if format does not include one
+	 */
+	public TimestampExtractor(Jorka jorka, String field, String dateFormat, TimeZone timeZone) {
+		if (jorka.getRegEx() == null) {
+			throw new IllegalArgumentException("Pattern is not compiled");
+		}
+		List<String> g = jorka.getCaptureGroups(field);
+		if (g.isEmpty()) {
+			throw new IllegalArgumentException("Field '" + field + "' is not captured by pattern");
+		}
+		this.regexp = jorka.getRegEx();
+		this.field = field;
+		this.groups = g.toArray(new String[g.size()]);
+		this.dateFormat = dateFormat;
+		this.hasYear = hasYearField(dateFormat);
+		// year-less values are parsed with year prepended, so Feb 29 is validated against actual year
+		this.format = new SimpleDateFormat(hasYear ? dateFormat : "yyyy " + dateFormat, Locale.US);
+		this.format.setTimeZone(timeZone);
+		this.format.setLenient(false);
+		updateReferenceYear();
+	}
+
+	/**
+	 * Sets reference time used to infer year if date format has no year.
+	 */
+	public void setReferenceTime(long referenceTime) {
+		this.referenceTime = referenceTime;
+		this.explicitReference = true;
+		updateReferenceYear();
+	}
+
+	/**
+	 * Uses modification time of log as reference time, unless one was set explicitly.
+	 */
+	void useReferenceOf(File log) {
+		if (!explicitReference && !hasYear) {
+			referenceTime = log.lastModified();
+			updateReferenceYear();
+		}
+	}
+
+	/**
+	 * @return hash of pattern, field and date format, used to detect stale indexes
+	 */
+	long getFingerprint() {
+		String config = regexp.toString() + "\n" + field + "\n" + dateFormat + "\n" + format.getTimeZone().getID();
+		if (!hasYear) {
+			config += "\n" + referenceYear;
+		}
+		return HyperLogLog.hash64(config);
+	}
+
+	/**
+	 * @return epoch milliseconds or {@link #NO_TIMESTAMP} if line has no parsable timestamp
+	 */
+	public long extract(String line) {
+		Matcher m = regexp.matcher(line);
+		if (!m.find()) {
+			return NO_TIMESTAMP;
+		}
+		for(String g: groups) {
+			String value = m.group(g);
+			if (value != null) {
+				value = collapseWhitespace(value);
+				if (hasYear) {
+					return parse(value);
+				}
+				long ts = parse(referenceYear + " " + value);
+				if (ts == NO_TIMESTAMP || ts > referenceTime + YEAR_TOLERANCE) {
+					ts = parse((referenceYear - 1) + " " + value);
+				}
+				return ts;
+			}
+		}
+		return NO_TIMESTAMP;
+	}
+
+	private long parse(String value) {
+		ParsePosition pp = new ParsePosition(0);
+		Date date = format.parse(value, pp);
+		if (date == null || pp.getIndex() != value.length()) {
+			return NO_TIMESTAMP;
+		}
+		return date.getTime();
+	}
+
+	private void updateReferenceYear() {
+		Calendar cal = Calendar.getInstance(format.getTimeZone(), Locale.US);
+		cal.setTimeInMillis(referenceTime);
+		referenceYear = cal.get(Calendar.YEAR);
+	}
+
+	private static boolean hasYearField(String dateFormat) {
+		boolean quoted = false;
+		for(int i = 0; i != dateFormat.length(); ++i) {
+			char c = dateFormat.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			}
+			else if (!quoted && (c == 'y' || c == 'Y')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Trims value and replaces runs of whitespace with single space.
+	 */
+	private static String collapseWhitespace(String value) {
+		int len = value.length();
+		boolean clean = len == 0 || (value.charAt(0) > ' ' && value.charAt(len - 1) > ' ');
+		for(int i = 0; clean && i != len; ++i) {
+			char c = value.charAt(i);
+			if (c <= ' ' && (c != ' ' || value.charAt(i + 1) <= ' ')) {
+				clean = false;
+			}
+		}
+		if (clean) {
+			return value;
+		}
+		StringBuilder sb = new StringBuilder(len);
+		boolean space = false;
+		for(int i = 0; i != len; ++i) {
+			char c = value.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+			}
+			else {
+				if (space) {
+					sb.append(' ');
+					space = false;
+				}
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
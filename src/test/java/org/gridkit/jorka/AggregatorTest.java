@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AggregatorTest {
+
+	private Jorka requestLog() throws Exception {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("%{WORD:path} %{INT:status} %{NUMBER:time}ms user=%{WORD:user}");
+		return g;
+	}
+
+	@Test
+	public void test_group_by_with_numeric_metrics() throws Exception {
+		Aggregator agg = new Aggregator(requestLog());
+		agg.groupBy("path", "status");
+		agg.sum("time");
+		agg.min("time");
+		agg.max("time");
+
+		Aggregator.Partial p = agg.newPartial();
+		p.accept("index 200 10ms user=a");
+		p.accept("index 200 30ms user=b");
+		p.accept("login 401 5.5ms user=a");
+		p.accept("index 500 1ms user=c");
+		p.accept("garbage");
+
+		Aggregator.Result r = agg.merge(Arrays.asList(p));
+		System.out.println(r.toJSON());
+
+		Assert.assertEquals(4, r.getMatchedCount());
+		Assert.assertEquals(1, r.getUnmatchedCount());
+		Assert.assertEquals(3, r.getRows().size());
+
+		Map<String, Object> row = r.getRows().get(0);
+		Assert.assertEquals("index", row.get("path"));
+		Assert.assertEquals("200", row.get("status"));
+		Assert.assertEquals(2l, row.get("count"));
+		Assert.assertEquals(40l, row.get("sum(time)"));
+		Assert.assertEquals(10l, row.get("min(time)"));
+		Assert.assertEquals(30l, row.get("max(time)"));
+
+		row = r.getRows().get(1);
+		Assert.assertEquals("login", row.get("path"));
+		Assert.assertEquals(5.5d, row.get("sum(time)"));
+	}
+
+	@Test
+	public void test_partials_merge() throws Exception {
+		Aggregator agg = new Aggregator(requestLog());
+		agg.groupBy("path");
+		agg.distinct("user");
+		agg.quantile("time", 0.5, 0.99);
+
+		List<Aggregator.Partial> partials = new ArrayList<Aggregator.Partial>();
+		for(int t = 0; t != 4; ++t) {
+			Aggregator.Partial p = agg.newPartial();
+			for(int i = 0; i != 2500; ++i) {
+				int n = t * 2500 + i;
+				p.accept((n % 2 == 0 ? "index" : "login") + " 200 " + (n + 1) + "ms user=u" + (n % 1000));
+			}
+			partials.add(p);
+		}
+
+		Aggregator.Result r = agg.merge(partials);
+		System.out.println(r.toJSON());
+
+		Assert.assertEquals(10000, r.getMatchedCount());
+		Assert.assertEquals(2, r.getRows().size());
+		for(Map<String, Object> row: r.getRows()) {
+			Assert.assertEquals(5000l, row.get("count"));
+			long distinct = (Long)row.get("distinct(user)");
+			Assert.assertTrue("distinct " + distinct, Math.abs(distinct - 500) < 25);
+			double p50 = ((Number)row.get("p50(time)")).doubleValue();
+			double p99 = ((Number)row.get("p99(time)")).doubleValue();
+			Assert.assertEquals(5000, p50, 5000 * 0.02);
+			Assert.assertEquals(9900, p99, 9900 * 0.02);
+		}
+	}
+
+	@Test
+	public void test_access_log_status_count() throws Exception {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("%{IP:client} - - \\[%{HTTPDATE:timestamp}\\] %{QS:query} %{NUMBER:response} (?:%{NUMBER:bytes}|-)");
+
+		Aggregator agg = new Aggregator(g);
+		agg.groupBy("response");
+		agg.sum("bytes");
+
+		Aggregator.Partial p = agg.newPartial();
+		p.accept("10.192.1.47 - - [23/May/2013:10:47:40 0] \"GET /a HTTP/1.1\" 200 100");
+		p.accept("10.192.1.48 - - [23/May/2013:10:47:41 0] \"GET /b HTTP/1.1\" 404 -");
+		p.accept("10.192.1.47 - - [23/May/2013:10:47:42 0] \"GET /a HTTP/1.1\" 200 50");
+
+		Aggregator.Result r = agg.merge(Arrays.asList(p));
+		Assert.assertEquals(2, r.getRows().size());
+		Assert.assertEquals(150l, r.getRows().get(0).get("sum(bytes)"));
+		Assert.assertNull(r.getRows().get(1).get("sum(bytes)"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_unknown_field() throws Exception {
+		new Aggregator(requestLog()).groupBy("no_such_field");
+	}
+}
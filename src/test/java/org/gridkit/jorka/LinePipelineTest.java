@@ -0,0 +1,295 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LinePipelineTest {
+
+	private static final int LINES = 50000;
+
+	private static byte[] logText() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for(int i = 0; i != LINES; ++i) {
+			bos.write(((i % 3 == 0 ? "index" : "login") + " 200 " + (i % 100) + "ms user=u" + (i % 10) + "\n").getBytes("UTF-8"));
+		}
+		return bos.toByteArray();
+	}
+
+	private static File tempFile(String suffix) throws IOException {
+		File file = File.createTempFile("jorka", suffix);
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static File writeGzip(byte[] data, int members) throws IOException {
+		File file = tempFile(".gz");
+		OutputStream os = new FileOutputStream(file);
+		int chunk = data.length / members + 1;
+		for(int i = 0; i < data.length; i += chunk) {
+			GZIPOutputStream gz = new GZIPOutputStream(new NonClosingStream(os));
+			gz.write(data, i, Math.min(chunk, data.length - i));
+			gz.close();
+		}
+		os.close();
+		return file;
+	}
+
+	/**
+	 * Writes data in BGZF format, terminated with empty EOF block as <tt>bgzip</tt> does.
+	 */
+	private static File writeBgzf(byte[] data) throws IOException {
+		File file = tempFile(".bgz");
+		OutputStream os = new FileOutputStream(file);
+		int chunk = 0xff00;
+		for(int i = 0; i < data.length; i += chunk) {
+			writeBgzfBlock(os, data, i, Math.min(chunk, data.length - i));
+		}
+		writeBgzfBlock(os, data, 0, 0);
+		os.close();
+		return file;
+	}
+
+	private static void writeBgzfBlock(OutputStream os, byte[] data, int off, int len) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data, off, len);
+		deflater.finish();
+		byte[] buf = new byte[len + 1024];
+		int clen = 0;
+		while(!deflater.finished()) {
+			clen += deflater.deflate(buf, clen, buf.length - clen);
+		}
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(data, off, len);
+		int bsize = 18 + clen + 8 - 1;
+		os.write(new byte[] {0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0, (byte)bsize, (byte)(bsize >> 8)});
+		os.write(buf, 0, clen);
+		writeInt(os, (int)crc.getValue());
+		writeInt(os, len);
+	}
+
+	private static void writeInt(OutputStream os, int v) throws IOException {
+		os.write(new byte[] {(byte)v, (byte)(v >> 8), (byte)(v >> 16), (byte)(v >> 24)});
+	}
+
+	private static long countLines(LinePipeline pipeline) throws IOException {
+		long n = 0;
+		List<String> batch;
+		while((batch = pipeline.nextBatch()) != null) {
+			n += batch.size();
+		}
+		return n;
+	}
+
+	@Test
+	public void test_plain_file() throws IOException {
+		File file = tempFile(".log");
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(logText());
+		fos.close();
+		Assert.assertEquals(LINES, countLines(LinePipeline.open(file)));
+	}
+
+	@Test
+	public void test_multi_member_gzip() throws IOException {
+		File file = writeGzip(logText(), 5);
+		Assert.assertEquals(LINES, countLines(LinePipeline.open(file)));
+	}
+
+	@Test
+	public void test_bgzf() throws IOException {
+		File file = writeBgzf(logText());
+		InputStream is = LinePipeline.openStream(file, 2);
+		Assert.assertTrue(is instanceof BgzfInputStream);
+		is.close();
+		Assert.assertEquals(LINES, countLines(LinePipeline.open(file)));
+	}
+
+	@Test(expected = IOException.class)
+	public void test_corrupted_bgzf() throws IOException {
+		File file = writeBgzf(logText());
+		byte[] data = new byte[(int)file.length()];
+		FileInputStream fis = new FileInputStream(file);
+		fis.read(data);
+		fis.close();
+		// damage CRC of first block
+		int bsize = (data[16] & 0xFF) | (data[17] & 0xFF) << 8;
+		data[bsize - 7] ^= 1;
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+		countLines(LinePipeline.open(file));
+	}
+
+	@Test
+	public void test_invalid_bgzf_block_size() throws IOException {
+		File file = writeBgzf(logText());
+		byte[] data = new byte[(int)file.length()];
+		FileInputStream fis = new FileInputStream(file);
+		fis.read(data);
+		fis.close();
+		// make uncompressed size of first block negative
+		int bsize = (data[16] & 0xFF) | (data[17] & 0xFF) << 8;
+		data[bsize] = (byte)0x80;
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+		InputStream is = LinePipeline.openStream(file, 2);
+		try {
+			byte[] buf = new byte[1 << 16];
+			while(is.read(buf) >= 0) {
+			}
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("Corrupted BGZF block"));
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void test_parallel_aggregation() throws Exception {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("%{WORD:path} %{INT:status} %{NUMBER:time}ms user=%{WORD:user}");
+
+		Aggregator agg = new Aggregator(g);
+		agg.groupBy("path");
+		agg.distinct("user");
+
+		Aggregator.Result r = agg.aggregate(LinePipeline.open(writeBgzf(logText())), 4);
+		System.out.println(r.toJSON());
+
+		Assert.assertEquals(LINES, r.getMatchedCount());
+		long total = 0;
+		for(Map<String, Object> row: r.getRows()) {
+			total += (Long)row.get("count");
+			Assert.assertEquals(10l, row.get("distinct(user)"));
+		}
+		Assert.assertEquals(LINES, total);
+	}
+
+	@Test
+	public void test_decoder_failure_is_reported() throws IOException {
+		InputStream failing = new InputStream() {
+
+			int n = 0;
+
+			@Override
+			public int read() throws IOException {
+				if (n++ < 100) {
+					return n % 10 == 0 ? '\n' : 'x';
+				}
+				throw new IllegalStateException("Decoder failure");
+			}
+		};
+		LinePipeline pipeline = new LinePipeline(failing, Charset.forName("UTF-8"), 1, 4);
+		try {
+			countLines(pipeline);
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void test_worker_failure_is_reported() throws Exception {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("%{WORD:w} %{WORD:x}");
+
+		Aggregator agg = new Aggregator(g);
+		agg.groupBy("w");
+
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i != 100; ++i) {
+			sb.append("a b\n");
+		}
+		final AtomicInteger batches = new AtomicInteger();
+		LinePipeline pipeline = new LinePipeline(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), Charset.forName("UTF-8"), 1, 1) {
+			@Override
+			public List<String> nextBatch() throws IOException {
+				List<String> batch = super.nextBatch();
+				if (batch != null && batches.incrementAndGet() > 1) {
+					throw new IllegalStateException("Worker failure");
+				}
+				return batch;
+			}
+		};
+		try {
+			agg.aggregate(pipeline, 2);
+			Assert.fail("Exception expected");
+		}
+		catch(IOException e) {
+			Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+		}
+		Assert.assertNull(pipeline.nextBatch());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_aggregate_requires_threads() throws Exception {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("%{WORD:w}");
+		LinePipeline pipeline = new LinePipeline(new ByteArrayInputStream(new byte[0]), Charset.forName("UTF-8"), 1, 1);
+		try {
+			new Aggregator(g).aggregate(pipeline, 0);
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	private static class NonClosingStream extends OutputStream {
+
+		private final OutputStream os;
+
+		NonClosingStream(OutputStream os) {
+			this.os = os;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			os.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			os.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PatternRegistryTest {
+
+	private File dir;
+	private PatternRegistry registry;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("jorka", ".patterns");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void cleanup() {
+		if (registry != null) {
+			registry.stop();
+		}
+		for(File f: dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private void write(String name, String text) throws IOException {
+		File file = new File(dir, name);
+		long prev = file.lastModified();
+		Writer w = new FileWriter(file);
+		w.write(text);
+		w.close();
+		// make sure change is visible with coarse file system timestamps
+		file.setLastModified(Math.max(System.currentTimeMillis(), prev + 2000));
+	}
+
+	private PatternRegistry newRegistry() {
+		PatternRegistry r = PatternRegistry.forDirectory(dir);
+		r.define("kv", "%{WORD:key}=%{VALUE:value}");
+		return r;
+	}
+
+	@Test
+	public void test_reload() throws IOException {
+		write("a_base", "WORD \\b\\w+\\b\n");
+		write("b_custom", "VALUE [0-9]+\n");
+		registry = newRegistry();
+		Assert.assertNull(registry.get());
+		Assert.assertTrue(registry.reload());
+
+		PatternRegistry.Library v1 = registry.get();
+		Assert.assertEquals(1, v1.getVersion());
+		Assert.assertNotNull(v1.match("kv", "a=12"));
+		Assert.assertNull(v1.match("kv", "a=x"));
+
+		write("b_custom", "VALUE [a-z]+\n");
+		Assert.assertTrue(registry.reload());
+
+		PatternRegistry.Library v2 = registry.get();
+		Assert.assertEquals(2, v2.getVersion());
+		Assert.assertNotNull(v2.match("kv", "a=x"));
+		// old version is unaffected
+		Assert.assertNull(v1.match("kv", "a=x"));
+	}
+
+	@Test
+	public void test_invalid_version_is_rejected() throws IOException {
+		write("a_base", "WORD \\b\\w+\\b\n");
+		write("b_custom", "VALUE [0-9]+\n");
+		registry = newRegistry();
+		registry.addSample("kv", "a=12");
+		Assert.assertTrue(registry.reload());
+		PatternRegistry.Library v1 = registry.get();
+
+		// broken regex
+		write("b_custom", "VALUE [0-9+\n");
+		Assert.assertFalse(registry.reload());
+		Assert.assertNotNull(registry.getLastError());
+		Assert.assertSame(v1, registry.get());
+
+		// missing pattern
+		write("b_custom", "NUMBER [0-9]+\n");
+		Assert.assertFalse(registry.reload());
+		Assert.assertTrue(registry.getLastError().getMessage(), registry.getLastError().getMessage().contains("VALUE"));
+		Assert.assertSame(v1, registry.get());
+
+		// sample does not match
+		write("b_custom", "VALUE [a-z]+\n");
+		Assert.assertFalse(registry.reload());
+		Assert.assertSame(v1, registry.get());
+
+		write("b_custom", "VALUE [0-9a-z]+\n");
+		Assert.assertTrue(registry.reload());
+		Assert.assertNull(registry.getLastError());
+		Assert.assertEquals(2, registry.get().getVersion());
+	}
+
+	@Test
+	public void test_cyclic_reference_is_rejected() throws IOException {
+		write("a_base", "WORD \\b\\w+\\b\n");
+		write("b_custom", "VALUE [0-9]+\n");
+		registry = newRegistry();
+		Assert.assertTrue(registry.reload());
+		PatternRegistry.Library v1 = registry.get();
+
+		write("b_custom", "VALUE x%{NUMBER}\nNUMBER [0-9]+|%{DIGITS}\nDIGITS y%{VALUE}\n");
+		Assert.assertFalse(registry.reload());
+		Assert.assertTrue(registry.getLastError().getMessage(), registry.getLastError().getMessage().contains("VALUE -> NUMBER -> DIGITS -> VALUE"));
+		Assert.assertSame(v1, registry.get());
+
+		// shared pattern is not a cycle
+		write("b_custom", "VALUE %{NUMBER}-%{NUMBER}|%{WORD}\nNUMBER [0-9]+\n");
+		Assert.assertTrue(registry.reload());
+		Assert.assertNotNull(registry.get().match("kv", "a=1-2"));
+	}
+
+	@Test
+	public void test_inline_definition() throws IOException {
+		write("a_base", "WORD \\b\\w+\\b\n");
+		registry = PatternRegistry.forDirectory(dir);
+		registry.define("x", "%{FOO=[0-9]+} %{FOO:b}");
+		registry.addSample("x", "1 2");
+		Assert.assertTrue(registry.reload());
+		Jorka.Match m = registry.get().match("x", "1 2");
+		m.parse();
+		Assert.assertEquals(2, m.toMap().get("b"));
+
+		registry.define("y", "%{BAR:a} %{BAR=[0-9]+}");
+		Assert.assertFalse(registry.reload());
+		Assert.assertTrue(registry.getLastError().getMessage(), registry.getLastError().getMessage().contains("unknown pattern BAR"));
+	}
+
+	@Test
+	public void test_listener_failure_does_not_fail_reload() throws Exception {
+		write("a_base", "WORD \\b\\w+\\b\n");
+		write("b_custom", "VALUE [0-9]+\n");
+		final AtomicLong reloads = new AtomicLong();
+		registry = newRegistry();
+		registry.addListener(new PatternRegistry.Listener() {
+
+			@Override
+			public void onReload(PatternRegistry.Library library) {
+				throw new AssertionError("Listener failure");
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				throw new IllegalStateException("Listener failure");
+			}
+		});
+		registry.addListener(new PatternRegistry.Listener() {
+
+			@Override
+			public void onReload(PatternRegistry.Library library) {
+				reloads.incrementAndGet();
+			}
+
+			@Override
+			public void onError(Throwable error) {
+			}
+		});
+		Assert.assertTrue(registry.reload());
+		Assert.assertNull(registry.getLastError());
+		Assert.assertEquals(1, reloads.get());
+
+		write("b_custom", "VALUE [0-9+\n");
+		Assert.assertFalse(registry.reload());
+
+		// polling survives failing listeners
+		registry.start(20);
+		for(String v: Arrays.asList("[a-z]+", "[0-9]+")) {
+			long count = reloads.get();
+			write("b_custom", "VALUE " + v + "\n");
+			long deadline = System.currentTimeMillis() + 5000;
+			while(reloads.get() == count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(count + 1, reloads.get());
+		}
+		Assert.assertEquals(3, registry.get().getVersion());
+	}
+
+	@Test
+	public void test_background_reload_under_load() throws Exception {
+		write("a_base", "WORD \\b\\w+\\b\n");
+		write("b_custom", "VALUE [0-9]+\n");
+		registry = newRegistry();
+		registry.reload();
+		registry.start(20);
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong matches = new AtomicLong();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i != threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while(!stop.get()) {
+							Jorka.Match m = registry.get().match("kv", "key=123");
+							if (m != null) {
+								m.parse();
+								Assert.assertEquals("key", m.toMap().get("key"));
+								matches.incrementAndGet();
+							}
+						}
+					}
+					catch(Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for(String v: Arrays.asList("[0-9a-f]+", "[a-z]+", "[0-9]+")) {
+			int version = registry.get().getVersion();
+			write("b_custom", "VALUE " + v + "\n");
+			long deadline = System.currentTimeMillis() + 5000;
+			while(registry.get().getVersion() == version && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(version + 1, registry.get().getVersion());
+		}
+		Assert.assertEquals(4, registry.get().getVersion());
+		Assert.assertNotNull(registry.get().match("kv", "a=1"));
+
+		stop.set(true);
+		for(Thread t: threads) {
+			t.join();
+		}
+		Assert.assertNull(String.valueOf(error.get()), error.get());
+		Assert.assertTrue(matches.get() > 0);
+	}
+}
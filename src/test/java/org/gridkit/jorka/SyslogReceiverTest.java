@@ -0,0 +1,386 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.gridkit.jorka.Jorka.Match;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SyslogReceiverTest {
+
+	private static final String RFC3164 = "<34>Oct 11 22:14:15 mymachine su: 'su root' failed for lonvick on /dev/pts/8";
+	private static final String RFC5424 = "<165>1 2003-10-11T22:14:15.003Z mymachine.example.com evntslog - ID47 [exampleSDID@32473 iut=\"3\" eventSource=\"Application\"] An application event log entry";
+
+	private SyslogReceiver receiver;
+
+	private final BlockingQueue<Map<String, Object>> messages = new LinkedBlockingQueue<Map<String,Object>>();
+	private final BlockingQueue<String> unmatched = new LinkedBlockingQueue<String>();
+
+	private final SyslogReceiver.Sink sink = new SyslogReceiver.Sink() {
+
+		@Override
+		public void onMessage(Match match) {
+			messages.add(match.toMap());
+		}
+
+		@Override
+		public void onUnmatched(String message) {
+			unmatched.add(message);
+		}
+	};
+
+	private static List<Jorka> syslogPatterns() throws IOException {
+		List<Jorka> patterns = new ArrayList<Jorka>();
+		for(String p: new String[] {"%{SYSLOG5424LINE}", "%{SYSLOG3164LINE}"}) {
+			Jorka g = new Jorka();
+			g.addPatternFromFile("src/test/resources/patterns/base");
+			g.addPatternFromFile("src/test/resources/patterns/linux-syslog");
+			g.compile(p);
+			patterns.add(g);
+		}
+		return patterns;
+	}
+
+	private InetSocketAddress loopback() throws IOException {
+		return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+	}
+
+	private Map<String, Object> nextMessage() throws InterruptedException {
+		Map<String, Object> m = messages.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull("Message is not received", m);
+		return m;
+	}
+
+	@After
+	public void stop() {
+		if (receiver != null) {
+			receiver.stop();
+		}
+	}
+
+	@Test
+	public void test_udp() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.addUdpListener(loopback());
+		receiver.start();
+
+		DatagramSocket socket = new DatagramSocket();
+		byte[] data = RFC3164.getBytes("UTF-8");
+		socket.send(new DatagramPacket(data, data.length, receiver.getUdpAddresses().get(0)));
+		data = (RFC5424 + "\n").getBytes("UTF-8");
+		socket.send(new DatagramPacket(data, data.length, receiver.getUdpAddresses().get(0)));
+		socket.close();
+
+		Map<String, Object> m = nextMessage();
+		System.out.println(m);
+		Assert.assertEquals(34, m.get("syslog_pri"));
+		Assert.assertEquals("mymachine", m.get("logsource"));
+		Assert.assertEquals("su", m.get("program"));
+		Assert.assertEquals("'su root' failed for lonvick on /dev/pts/8", m.get("message"));
+
+		m = nextMessage();
+		System.out.println(m);
+		Assert.assertEquals(165, m.get("syslog_pri"));
+		Assert.assertEquals("mymachine.example.com", m.get("logsource"));
+		Assert.assertEquals("evntslog", m.get("program"));
+		Assert.assertEquals("ID47", m.get("msgid"));
+		Assert.assertNull(m.get("pid"));
+		Assert.assertEquals("An application event log entry", m.get("message"));
+	}
+
+	@Test
+	public void test_tcp_framing() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		byte[] octetCounted = RFC5424.getBytes("UTF-8");
+		// message split across writes
+		os.write((octetCounted.length + " ").getBytes("UTF-8"));
+		os.flush();
+		Thread.sleep(50);
+		os.write(octetCounted, 0, 20);
+		os.flush();
+		Thread.sleep(50);
+		os.write(octetCounted, 20, octetCounted.length - 20);
+		os.write((RFC3164 + "\n" + "not a syslog line\r\n" + RFC3164).getBytes("UTF-8"));
+		os.flush();
+		socket.close();
+
+		Assert.assertEquals("ID47", nextMessage().get("msgid"));
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals("not a syslog line", unmatched.poll(5, TimeUnit.SECONDS));
+		// last line is terminated by connection close
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals(4, receiver.getReceivedCount());
+		Assert.assertEquals(0, receiver.getDroppedCount());
+	}
+
+	@Test
+	public void test_overload_drops() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final BlockingQueue<String> delivered = new LinkedBlockingQueue<String>();
+		receiver = new SyslogReceiver(syslogPatterns(), new SyslogReceiver.Sink() {
+
+			@Override
+			public void onMessage(Match match) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				delivered.add(match.getText());
+			}
+
+			@Override
+			public void onUnmatched(String message) {
+			}
+		});
+		receiver.setQueueCapacity(2);
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		for(int i = 0; i != 10; ++i) {
+			os.write((RFC3164 + "\n").getBytes("UTF-8"));
+		}
+		os.close();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(receiver.getReceivedCount() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(10, receiver.getReceivedCount());
+		release.countDown();
+		deadline = System.currentTimeMillis() + 5000;
+		while(delivered.size() + receiver.getDroppedCount() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue("Dropped " + receiver.getDroppedCount(), receiver.getDroppedCount() >= 7);
+		Assert.assertEquals(10, delivered.size() + receiver.getDroppedCount());
+	}
+
+	@Test
+	public void test_oversized_message() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.setMaxMessageSize(256);
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		StringBuilder sb = new StringBuilder(RFC3164);
+		while(sb.length() < 1000) {
+			sb.append(" padding");
+		}
+		byte[] large = sb.toString().getBytes("UTF-8");
+		os.write(large);
+		os.write('\n');
+		os.write((large.length + " ").getBytes("UTF-8"));
+		os.write(large);
+		os.write((RFC3164 + "\n").getBytes("UTF-8"));
+		os.close();
+
+		Assert.assertEquals("'su root' failed for lonvick on /dev/pts/8", nextMessage().get("message"));
+		Assert.assertEquals(2, receiver.getOversizedCount());
+		Assert.assertEquals(3, receiver.getReceivedCount());
+		Assert.assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void test_udp_message_of_max_size() throws Exception {
+		byte[] data = RFC3164.getBytes("UTF-8");
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.setMaxMessageSize(data.length);
+		receiver.addUdpListener(loopback());
+		receiver.start();
+
+		DatagramSocket socket = new DatagramSocket();
+		socket.send(new DatagramPacket(data, data.length, receiver.getUdpAddresses().get(0)));
+		byte[] large = (RFC3164 + "!").getBytes("UTF-8");
+		socket.send(new DatagramPacket(large, large.length, receiver.getUdpAddresses().get(0)));
+		socket.send(new DatagramPacket(data, data.length, receiver.getUdpAddresses().get(0)));
+		socket.close();
+
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals(3, receiver.getReceivedCount());
+		Assert.assertEquals(1, receiver.getOversizedCount());
+	}
+
+	@Test
+	public void test_garbage_octet_count_is_accounted() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		os.write(("99999999999999999999 garbage\n" + RFC3164 + "\n").getBytes("UTF-8"));
+		os.close();
+
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals(2, receiver.getReceivedCount());
+		Assert.assertEquals(1, receiver.getOversizedCount());
+		Assert.assertEquals(receiver.getReceivedCount(), receiver.getMatchedCount() + receiver.getUnmatchedCount() + receiver.getDroppedCount() + receiver.getOversizedCount());
+	}
+
+	@Test
+	public void test_sink_failure_is_counted() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), new SyslogReceiver.Sink() {
+
+			@Override
+			public void onMessage(Match match) {
+				messages.add(match.toMap());
+			}
+
+			@Override
+			public void onUnmatched(String message) {
+				throw new IllegalStateException("Sink failure");
+			}
+		});
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		os.write(("not a syslog line\n" + RFC3164 + "\n").getBytes("UTF-8"));
+		os.close();
+
+		// worker survives failure
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals(1, receiver.getFailedCount());
+		receiver.stop();
+		Assert.assertEquals(1, receiver.getFailedCount());
+	}
+
+	@Test
+	public void test_long_zero_prefix_is_discarded() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		// longer than read buffer
+		byte[] zeros = new byte[20000];
+		Arrays.fill(zeros, (byte)'0');
+		os.write(zeros);
+		os.write("\nhello\n".getBytes("UTF-8"));
+		os.flush();
+
+		Assert.assertEquals("hello", unmatched.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals(2, receiver.getReceivedCount());
+		Assert.assertEquals(1, receiver.getOversizedCount());
+		socket.close();
+	}
+
+	@Test
+	public void test_worker_survives_error() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), new SyslogReceiver.Sink() {
+
+			@Override
+			public void onMessage(Match match) {
+				messages.add(match.toMap());
+			}
+
+			@Override
+			public void onUnmatched(String message) {
+				throw new StackOverflowError();
+			}
+		});
+		receiver.addTcpListener(loopback());
+		receiver.start();
+
+		Socket socket = new Socket();
+		socket.connect(receiver.getTcpAddresses().get(0));
+		OutputStream os = socket.getOutputStream();
+		os.write(("not a syslog line\n" + RFC3164 + "\n").getBytes("UTF-8"));
+		os.close();
+
+		Assert.assertEquals("su", nextMessage().get("program"));
+		Assert.assertEquals(1, receiver.getFailedCount());
+		Assert.assertEquals(0, receiver.getDroppedCount());
+	}
+
+	@Test
+	public void test_selector_failure_is_reported() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		receiver.addTcpListener(loopback());
+		receiver.start();
+		Assert.assertTrue(receiver.isRunning());
+
+		// simulate selector failure
+		Field field = SyslogReceiver.class.getDeclaredField("selector");
+		field.setAccessible(true);
+		((Selector)field.get(receiver)).close();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(receiver.isRunning() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(receiver.isRunning());
+		Assert.assertNotNull(receiver.getError());
+		try {
+			new Socket().connect(receiver.getTcpAddresses().get(0));
+			Assert.fail("Listener should be closed");
+		}
+		catch(IOException e) {
+			// expected
+		}
+		receiver.stop();
+	}
+
+	@Test
+	public void test_stop() throws Exception {
+		receiver = new SyslogReceiver(syslogPatterns(), sink);
+		Assert.assertFalse(receiver.isRunning());
+		receiver.addUdpListener(loopback());
+		receiver.start();
+		Assert.assertTrue(receiver.isRunning());
+		receiver.stop();
+		Assert.assertFalse(receiver.isRunning());
+		Assert.assertNull(receiver.getError());
+	}
+}
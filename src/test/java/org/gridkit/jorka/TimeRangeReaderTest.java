@@ -0,0 +1,260 @@
+/**
+ * Copyright 2013 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.jorka;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeRangeReaderTest {
+
+	private static final String HTTPDATE_FORMAT = "dd/MMM/yyyy:HH:mm:ss Z";
+
+	private static long time(String text) throws Exception {
+		SimpleDateFormat fmt = new SimpleDateFormat(HTTPDATE_FORMAT, Locale.US);
+		return fmt.parse(text).getTime();
+	}
+
+	/**
+	 * Two hours of access log, one request per second,
+	 * every 100th request is followed by two lines without timestamp.
+	 */
+	private static File accessLog() throws Exception {
+		File file = File.createTempFile("jorka", ".log");
+		file.deleteOnExit();
+		TimeIndex.indexFileFor(file).deleteOnExit();
+		SimpleDateFormat fmt = new SimpleDateFormat(HTTPDATE_FORMAT, Locale.US);
+		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long start = time("23/May/2013:10:00:00 +0000");
+		Writer w = new FileWriter(file);
+		for(int i = 0; i != 7200; ++i) {
+			w.write("10.0.0." + (i % 250) + " - - [" + fmt.format(start + 1000l * i) + "] \"GET /page" + i + " HTTP/1.1\" 200 " + i + "\n");
+			if (i % 100 == 0) {
+				w.write("  continuation " + i + "\n");
+				w.write("  continuation " + i + "\n");
+			}
+		}
+		w.close();
+		return file;
+	}
+
+	/**
+	 * Two hours of syslog around new year, one message per second.
+	 * Syslog timestamps have no year, it is inferred from modification time of file.
+	 */
+	private static File syslog() throws Exception {
+		File file = File.createTempFile("jorka", ".log");
+		file.deleteOnExit();
+		SimpleDateFormat fmt = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.US);
+		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long start = time("31/Dec/2013:23:00:00 +0000");
+		Writer w = new FileWriter(file);
+		for(int i = 0; i != 7200; ++i) {
+			// SYSLOGTIMESTAMP pads day of month with space
+			String ts = fmt.format(start + 1000l * i);
+			if (ts.charAt(4) == '0') {
+				ts = ts.substring(0, 4) + " " + ts.substring(5);
+			}
+			w.write(ts + " host app[" + i + "]: message " + i + "\n");
+		}
+		w.close();
+		file.setLastModified(start + 7200 * 1000l);
+		return file;
+	}
+
+	private static TimestampExtractor syslogExtractor() throws IOException {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("^%{SYSLOGTIMESTAMP:timestamp} ");
+		return new TimestampExtractor(g, "timestamp", "MMM d HH:mm:ss", TimeZone.getTimeZone("UTC"));
+	}
+
+	private static TimestampExtractor extractor() throws IOException {
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("\\[%{HTTPDATE:timestamp}\\]");
+		return new TimestampExtractor(g, "timestamp", HTTPDATE_FORMAT);
+	}
+
+	private static List<String> read(File log, TimeIndex index, long from, long to) throws Exception {
+		return read(log, extractor(), index, from, to);
+	}
+
+	private static List<String> read(File log, TimestampExtractor extractor, TimeIndex index, long from, long to) throws Exception {
+		TimeRangeReader reader = new TimeRangeReader(log, extractor, index, from, to);
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		return lines;
+	}
+
+	private static void verifyWindow(List<String> lines) {
+		Assert.assertEquals(612, lines.size());
+		Assert.assertTrue(lines.get(0), lines.get(0).contains("[23/May/2013:10:40:00 +0000]"));
+		Assert.assertTrue(lines.get(1), lines.get(1).contains("continuation 2400"));
+		Assert.assertTrue(lines.get(611), lines.get(611).contains("[23/May/2013:10:49:59 +0000]"));
+	}
+
+	@Test
+	public void test_extract_httpdate() throws Exception {
+		long ts = extractor().extract("1.2.3.4 - - [23/May/2013:10:47:40 +0000] \"GET / HTTP/1.1\" 200 1");
+		Assert.assertEquals(time("23/May/2013:10:47:40 +0000"), ts);
+		Assert.assertEquals(TimestampExtractor.NO_TIMESTAMP, extractor().extract("no timestamp here"));
+	}
+
+	@Test
+	public void test_extract_syslog_timestamp() throws Exception {
+		TimestampExtractor ex = syslogExtractor();
+		ex.setReferenceTime(time("01/Jun/2013:00:00:00 +0000"));
+		Assert.assertEquals(time("03/May/2013:10:47:40 +0000"), ex.extract("May  3 10:47:40 host sshd[123]: message"));
+		// few hours ahead of reference is tolerated as clock skew
+		Assert.assertEquals(time("01/Jun/2013:03:00:00 +0000"), ex.extract("Jun  1 03:00:00 host sshd[123]: message"));
+		Assert.assertEquals(time("02/Jul/2012:00:00:00 +0000"), ex.extract("Jul  2 00:00:00 host sshd[123]: message"));
+		// leap day is validated against inferred year
+		Assert.assertEquals(time("29/Feb/2012:12:00:00 +0000"), ex.extract("Feb 29 12:00:00 host sshd[123]: message"));
+	}
+
+	@Test
+	public void test_extract_syslog_year_rollover() throws Exception {
+		TimestampExtractor ex = syslogExtractor();
+		ex.setReferenceTime(time("01/Jan/2014:05:00:00 +0000"));
+		long dec = ex.extract("Dec 31 23:59:59 host sshd[123]: message");
+		long jan = ex.extract("Jan  1 00:00:01 host sshd[123]: message");
+		Assert.assertEquals(time("31/Dec/2013:23:59:59 +0000"), dec);
+		Assert.assertEquals(time("01/Jan/2014:00:00:01 +0000"), jan);
+		Assert.assertTrue(dec < jan);
+	}
+
+	@Test
+	public void test_syslog_range_over_new_year() throws Exception {
+		File log = syslog();
+		TimeIndex.indexFileFor(log).deleteOnExit();
+		long from = time("31/Dec/2013:23:55:00 +0000");
+		long to = time("01/Jan/2014:00:05:00 +0000");
+		TimeIndex index = TimeIndex.open(log, syslogExtractor(), 4 << 10);
+		for(TimeIndex ti: new TimeIndex[]{index, null}) {
+			List<String> lines = read(log, syslogExtractor(), ti, from, to);
+			Assert.assertEquals(600, lines.size());
+			Assert.assertTrue(lines.get(0), lines.get(0).startsWith("Dec 31 23:55:00 "));
+			Assert.assertTrue(lines.get(599), lines.get(599).startsWith("Jan  1 00:04:59 "));
+		}
+	}
+
+	@Test
+	public void test_range_with_index() throws Exception {
+		File log = accessLog();
+		TimeIndex index = TimeIndex.open(log, extractor(), 4 << 10);
+		Assert.assertTrue(index.size() > 100);
+		verifyWindow(read(log, index, time("23/May/2013:10:40:00 +0000"), time("23/May/2013:10:50:00 +0000")));
+	}
+
+	@Test
+	public void test_range_with_binary_search() throws Exception {
+		File log = accessLog();
+		verifyWindow(read(log, null, time("23/May/2013:10:40:00 +0000"), time("23/May/2013:10:50:00 +0000")));
+	}
+
+	@Test
+	public void test_range_bounds() throws Exception {
+		File log = accessLog();
+		TimeIndex index = TimeIndex.build(log, extractor(), 4 << 10);
+		Assert.assertEquals(7200 + 144, read(log, index, time("23/May/2013:09:00:00 +0000"), time("23/May/2013:13:00:00 +0000")).size());
+		Assert.assertEquals(0, read(log, index, time("23/May/2013:12:00:00 +0000"), time("23/May/2013:13:00:00 +0000")).size());
+		Assert.assertEquals(0, read(log, null, time("23/May/2013:09:00:00 +0000"), time("23/May/2013:10:00:00 +0000")).size());
+	}
+
+	@Test
+	public void test_index_persistence() throws Exception {
+		File log = accessLog();
+		TimeIndex index = TimeIndex.open(log, extractor(), 4 << 10);
+		TimeIndex loaded = TimeIndex.load(TimeIndex.indexFileFor(log), log, extractor());
+		Assert.assertNotNull(loaded);
+		Assert.assertEquals(index.size(), loaded.size());
+
+		Writer w = new FileWriter(log, true);
+		w.write("appended line\n");
+		w.close();
+		Assert.assertNull(TimeIndex.load(TimeIndex.indexFileFor(log), log, extractor()));
+	}
+
+	@Test
+	public void test_index_built_by_other_extractor_is_stale() throws Exception {
+		File log = accessLog();
+		TimeIndex.open(log, extractor(), 4 << 10);
+		Assert.assertNotNull(TimeIndex.load(TimeIndex.indexFileFor(log), log, extractor()));
+
+		Jorka g = new Jorka();
+		g.addPatternFromFile("src/test/resources/patterns/base");
+		g.compile("\\[%{HTTPDATE:timestamp}\\]");
+		Assert.assertNull(TimeIndex.load(TimeIndex.indexFileFor(log), log, new TimestampExtractor(g, "timestamp", HTTPDATE_FORMAT, TimeZone.getTimeZone("GMT+05:00"))));
+		g.compile("\\[%{HTTPDATE:timestamp}\\] ");
+		Assert.assertNull(TimeIndex.load(TimeIndex.indexFileFor(log), log, new TimestampExtractor(g, "timestamp", HTTPDATE_FORMAT)));
+	}
+
+	@Test
+	public void test_index_location() throws Exception {
+		File log = accessLog();
+		File indexFile = File.createTempFile("jorka", TimeIndex.INDEX_SUFFIX);
+		indexFile.deleteOnExit();
+		TimeIndex index = TimeIndex.open(log, extractor(), 4 << 10, indexFile);
+		Assert.assertFalse(TimeIndex.indexFileFor(log).exists());
+		Assert.assertEquals(index.size(), TimeIndex.load(indexFile, log, extractor()).size());
+
+		// index is usable even if it cannot be saved
+		File unwritable = new File(new File(indexFile.getPath() + ".missing"), "log" + TimeIndex.INDEX_SUFFIX);
+		index = TimeIndex.open(log, extractor(), 4 << 10, unwritable);
+		Assert.assertFalse(unwritable.exists());
+		verifyWindow(read(log, index, time("23/May/2013:10:40:00 +0000"), time("23/May/2013:10:50:00 +0000")));
+	}
+
+	@Test
+	public void test_corrupted_index_is_ignored() throws Exception {
+		File log = accessLog();
+		File indexFile = TimeIndex.indexFileFor(log);
+		int size = TimeIndex.open(log, extractor(), 4 << 10).size();
+
+		// entry count is right after 36 byte header prefix
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		raf.seek(36);
+		raf.writeInt(Integer.MAX_VALUE);
+		raf.close();
+		Assert.assertNull(TimeIndex.load(indexFile, log, extractor()));
+
+		raf = new RandomAccessFile(indexFile, "rw");
+		raf.seek(36);
+		raf.writeInt(size);
+		raf.setLength(raf.length() - 8);
+		raf.close();
+		Assert.assertNull(TimeIndex.load(indexFile, log, extractor()));
+
+		// index is rebuilt on open
+		Assert.assertEquals(size, TimeIndex.open(log, extractor(), 4 << 10).size());
+		Assert.assertNotNull(TimeIndex.load(indexFile, log, extractor()));
+	}
+}